@@ -0,0 +1,35 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy.bench;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.copalis.antsy.AntTask;
+
+/**
+ * An Ant task that does nothing, and a facade for it, for measuring the cost of the facade layer
+ *
+ * @author gilesjb
+ */
+public class NoopTask extends Task {
+
+    @Override public void execute() {
+    }
+
+    public static class Noop extends AntTask<NoopTask> {
+        public Noop(String name, Project project) {super(name, NoopTask.class, project);}
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.copalis.antsy.AntProject;
+import org.copalis.antsy.AntProjectPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of small concurrent builds on fresh projects and on pooled projects
+ *
+ * @author gilesjb
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class PoolBenchmark {
+
+    private AntProjectPool pool;
+
+    @Setup
+    public void setup() {
+        AntProject template = new AntProject();
+        template.project().init();
+        pool = new AntProjectPool(template, 64);
+    }
+
+    private static void build(AntProject ant) {
+        ant.project().setNewProperty("tenant", Thread.currentThread().getName());
+        ant.task(NoopTask.Noop.class).run();
+        ant.project().replaceProperties("${tenant} ${java.version}");
+    }
+
+    @Benchmark
+    public void fresh() {
+        AntProject ant = new AntProject();
+        ant.project().init();
+        build(ant);
+    }
+
+    @Benchmark
+    public void pooled() {
+        pool.build(PoolBenchmark::build);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.copalis.antsy.ParallelDirectoryScanner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares Ant's directory scanner with the parallel scanner on synthetic source trees
+ *
+ * @author gilesjb
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScanBenchmark {
+
+    private static final String[] INCLUDES = {"**/*.java"}, EXCLUDES = {"**/internal/**"};
+
+    @Param({"100000", "1000000"})
+    public int files;
+
+    private Path root;
+
+    /**
+     * Creates packages of 100 files, nine sources and a resource in ten,
+     * nested three deep, with a tenth of the packages in excluded directories
+     */
+    @Setup
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("antsy-scan");
+        for (int i = 0; i < files; i++) {
+            Path dir = root.resolve(String.format("p%d/q%d/%sr%d",
+                    i / 100_000, i / 10_000 % 10, i / 1_000 % 10 == 0 ? "internal/" : "", i / 100 % 10));
+            if (i % 100 == 0) Files.createDirectories(dir);
+            Files.createFile(dir.resolve("F" + i + (i % 10 == 0 ? ".properties" : ".java")));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private int scan(DirectoryScanner scanner) {
+        scanner.setBasedir(root.toFile());
+        scanner.setIncludes(INCLUDES);
+        scanner.setExcludes(EXCLUDES);
+        scanner.addDefaultExcludes();
+        scanner.scan();
+        return scanner.getIncludedFilesCount();
+    }
+
+    @Benchmark
+    public int ant() {
+        return scan(new DirectoryScanner());
+    }
+
+    @Benchmark
+    public int parallel() {
+        return scan(new ParallelDirectoryScanner());
+    }
+}
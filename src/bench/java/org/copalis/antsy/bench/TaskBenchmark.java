@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy.bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.copalis.antsy.AntProject;
+import org.copalis.antsy.AntTask;
+import org.copalis.antsy.AntTaskSpec;
+import org.copalis.antsy.Tasks;
+import org.copalis.antsy.taskdefs.Copy;
+import org.copalis.antsy.types.FileSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of the facade layer on top of the Ant tasks it wraps
+ *
+ * @author gilesjb
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TaskBenchmark implements Tasks {
+
+    private static final File DIR = new File("src");
+    private static final AntTaskSpec<Copy, ?> SPEC = AntTaskSpec.of(copy, c -> c.withFileset().dir(DIR).end());
+
+    private AntProject ant;
+    private Project project;
+
+    @Setup
+    public void setup() {
+        ant = new AntProject();
+        project = ant.project();
+    }
+
+    @Benchmark
+    public Copy create() {
+        return AntTask.create(copy, project);
+    }
+
+    @Benchmark
+    public Copy fluentChain() {
+        return ant.task(copy).withFileset().dir(DIR).end();
+    }
+
+    @Benchmark
+    public Copy specCreate() {
+        return SPEC.create(project);
+    }
+
+    @Benchmark
+    public Object elementEnd() {
+        return new FileSet<Object>(new org.apache.tools.ant.types.FileSet(), this).end();
+    }
+
+    @Benchmark
+    public void runNoop() {
+        ant.task(NoopTask.Noop.class).run();
+    }
+
+    @Benchmark
+    public void runNoopInferLocation() {
+        ant.task(NoopTask.Noop.class).inferLocation(true).run();
+    }
+
+    @Benchmark
+    public void runNoopDirect() {
+        NoopTask task = new NoopTask();
+        task.setTaskName("noop");
+        task.setProject(project);
+        task.perform();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.copalis.antsy.AntProject;
+import org.copalis.antsy.Tasks;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares Ant's {@code jar} task with the archive engine on synthetic trees of compressible files
+ *
+ * @author gilesjb
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ZipBenchmark implements Tasks {
+
+    private static final String[] WORDS = {"class", "public", "return", "import", "static", "final", "void", "int"};
+
+    @Param({"100", "500"})
+    public int megabytes;
+
+    private Path root;
+    private File src, dest;
+
+    /**
+     * Creates files of text from 1 KB to 4 MB, most of them small, in directories of 100
+     */
+    @Setup
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("antsy-zip");
+        src = root.resolve("src").toFile();
+        dest = root.resolve("out.jar").toFile();
+        Random random = new Random(0);
+        long total = 0;
+        for (int i = 0; total < megabytes << 20; i++) {
+            int size = i % 50 == 0 ? 1 << 22 : 1024 + random.nextInt(64 << 10);
+            StringBuilder text = new StringBuilder(size + 16);
+            while (text.length() < size) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(1000))
+                        .append(random.nextInt(8) == 0 ? '\n' : ' ');
+            }
+            Path file = src.toPath().resolve(String.format("d%d/F%d.txt", i / 100, i));
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, text);
+            total += text.length();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private long jar(AntProject ant) {
+        dest.delete();
+        ant.task(jar).destFile(dest).basedir(src).run();
+        return dest.length();
+    }
+
+    @Benchmark
+    public long ant() {
+        return jar(new AntProject());
+    }
+
+    @Benchmark
+    public long parallel() {
+        return jar(new AntProject().archiveEngines(false));
+    }
+
+    @Benchmark
+    public long reproducible() {
+        return jar(new AntProject().archiveEngines(true));
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.BuildLogger;
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.Project;
+
+/**
+ * A logger that formats and writes build events on a background thread.
+ * <p/>
+ * Events are added to a bounded lock-free ring buffer by the threads that fire them,
+ * and a single writer thread passes them in batches to a delegate logger,
+ * whose output is buffered and flushed after each batch.
+ * When the buffer is full, messages are either dropped or the firing thread waits, depending on the policy;
+ * build, target and task events are never dropped.
+ * {@link #flush()} waits until every earlier event has been written.
+ * The writer thread sleeps while the buffer is empty, and is woken by the next event.
+ * {@link #buildFinished(BuildEvent)} writes the remaining events and stops the writer thread,
+ * and {@link #buildStarted(BuildEvent)} starts a new one, so that a logger does not keep a thread between builds;
+ * events fired while there is no writer thread are written by the threads that fire them.
+ * {@link #close()} stops the writer thread for good.
+ *
+ * <pre>
+ * AntProject ant = new AntProject(new Project(), new AntAsyncLogger(new DefaultLogger(), 8192, Policy.BLOCK));
+ * </pre>
+ *
+ * @author gilesjb
+ */
+public class AntAsyncLogger implements BuildLogger, Closeable {
+
+    /**
+     * What to do with a message when the buffer is full
+     */
+    public enum Policy {
+        /** wait for the writer to make space */
+        BLOCK,
+        /** discard the message, and count it */
+        DROP
+    }
+
+    private record Event(BiConsumer<BuildListener, BuildEvent> type, BuildEvent event) {}
+
+    private final BuildLogger delegate;
+    private final Policy policy;
+    private final int mask;
+    private final Event[] events;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final Object lifecycle = new Object();
+    private volatile Thread writer;
+    private volatile long head = 0;
+    private volatile boolean sleeping, stopping, closed;
+    private volatile int level = Project.MSG_INFO;
+    private PrintStream out, err;
+
+    /**
+     * Creates an asynchronous logger with a {@link DefaultLogger} delegate, a buffer of 8192 events,
+     * and the {@link Policy#BLOCK BLOCK} policy
+     */
+    public AntAsyncLogger() {
+        this(new DefaultLogger(), 8192, Policy.BLOCK);
+    }
+
+    /**
+     * Creates an asynchronous logger
+     * @param delegate the logger that formats and writes events
+     * @param capacity the number of events that can be buffered, rounded up to a power of two
+     * @param policy what to do with messages when the buffer is full
+     */
+    public AntAsyncLogger(BuildLogger delegate, int capacity, Policy policy) {
+        this.delegate = delegate;
+        this.policy = policy;
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.events = new Event[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        start();
+    }
+
+    /**
+     * Gets the number of messages that were discarded because the buffer was full
+     * @return the count of dropped messages
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Waits until all events fired so far have been written
+     */
+    public void flush() {
+        await(tail.get());
+    }
+
+    private long offer(Event event, boolean droppable) {
+        for (int spins = 0; ; spins++) {
+            long t = tail.get();
+            int slot = (int) t & mask;
+            long seq = sequences.get(slot);
+            if (seq == t) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    events[slot] = event;
+                    sequences.set(slot, t + 1);
+                    if (sleeping) LockSupport.unpark(writer);
+                    if (stopping && !writer.isAlive()) drain();
+                    return t;
+                }
+            } else if (seq < t) { // full
+                if (droppable) {
+                    dropped.increment();
+                    return -1;
+                }
+                if (!writer.isAlive()) {
+                    drain();
+                    continue;
+                }
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(spins < 100 ? 1_000 : 100_000);
+            }
+        }
+    }
+
+    private void write() {
+        while (true) {
+            if (drain() == 0) {
+                if (stopping) return;
+                sleeping = true;
+                if (sequences.get((int) head & mask) != head + 1 && !stopping) LockSupport.park(this);
+                sleeping = false;
+            }
+        }
+    }
+
+    /**
+     * Writes the events that are ready, flushes the output,
+     * and only then advances the head past them
+     * @return the number of events written
+     */
+    private synchronized int drain() {
+        long h = head;
+        int batch = 0;
+        for (int slot = (int) h & mask; sequences.get(slot) == h + 1; slot = (int) h & mask) {
+            Event event = events[slot];
+            events[slot] = null;
+            sequences.set(slot, h + mask + 1);
+            try {
+                event.type().accept(delegate, event.event());
+            } catch (RuntimeException e) {
+                e.printStackTrace(err == null ? System.err : err);
+            }
+            h++;
+            batch++;
+        }
+        if (batch > 0) {
+            if (out != null) out.flush();
+            if (err != null) err.flush();
+            head = h;
+        }
+        return batch;
+    }
+
+    private void await(long sequence) {
+        while (head < sequence) {
+            if (!writer.isAlive()) {
+                drain();
+                continue;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    /**
+     * Starts a writer thread, unless one is running or the logger is closed
+     */
+    private void start() {
+        synchronized (lifecycle) {
+            if (closed || writer != null && writer.isAlive()) return;
+            Thread thread = new Thread(this::write, "antsy-logger");
+            thread.setDaemon(true);
+            writer = thread;
+            stopping = false;
+            thread.start();
+        }
+    }
+
+    /**
+     * Writes the remaining events, and stops the writer thread
+     */
+    private void stop() {
+        synchronized (lifecycle) {
+            stopping = true;
+            LockSupport.unpark(writer);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            drain();
+        }
+    }
+
+    /**
+     * Writes the remaining events, and stops the writer thread without starting another
+     */
+    @Override public void close() {
+        synchronized (lifecycle) {
+            closed = true;
+            stop();
+        }
+    }
+
+    @Override public void buildStarted(BuildEvent event) {
+        start();
+        offer(new Event(BuildListener::buildStarted, event), false);
+    }
+
+    @Override public void buildFinished(BuildEvent event) {
+        await(offer(new Event(BuildListener::buildFinished, event), false) + 1);
+        stop();
+    }
+
+    @Override public void targetStarted(BuildEvent event) {
+        offer(new Event(BuildListener::targetStarted, event), false);
+    }
+
+    @Override public void targetFinished(BuildEvent event) {
+        offer(new Event(BuildListener::targetFinished, event), false);
+    }
+
+    @Override public void taskStarted(BuildEvent event) {
+        offer(new Event(BuildListener::taskStarted, event), false);
+    }
+
+    @Override public void taskFinished(BuildEvent event) {
+        offer(new Event(BuildListener::taskFinished, event), false);
+    }
+
+    @Override public void messageLogged(BuildEvent event) {
+        if (event.getPriority() <= level) {
+            offer(new Event(BuildListener::messageLogged, event), policy == Policy.DROP);
+        }
+    }
+
+    @Override public void setMessageOutputLevel(int level) {
+        this.level = level;
+        delegate.setMessageOutputLevel(level);
+    }
+
+    @Override public void setOutputPrintStream(PrintStream output) {
+        out = new PrintStream(new BufferedOutputStream(output, 1 << 16), false);
+        delegate.setOutputPrintStream(out);
+    }
+
+    @Override public void setErrorPrintStream(PrintStream err) {
+        this.err = new PrintStream(new BufferedOutputStream(err, 1 << 16), false);
+        delegate.setErrorPrintStream(this.err);
+    }
+
+    @Override public void setEmacsMode(boolean emacsMode) {
+        delegate.setEmacsMode(emacsMode);
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+/**
+ * A local cache of task outputs, addressed by the fingerprint of each task's configuration and input files.
+ * <p/>
+ * When an {@link AntTask#incremental(File...) incremental} task runs in a project that has a build cache,
+ * its outputs are restored from the cache if a task with the same fingerprint has run before,
+ * and otherwise are stored in the cache after the task executes.
+ * <p/>
+ * Entries are evicted when they have not been used for longer than the maximum age,
+ * and least recently used entries are evicted while the cache is larger than its maximum size.
+ * The cache directory can be shared by concurrent builds in different JVMs;
+ * entries are written to a temporary directory and renamed into place,
+ * and reads and evictions are serialized with a file lock.
+ *
+ * @author gilesjb
+ */
+public class AntBuildCache {
+
+    static final String REFERENCE = "antsy.cache";
+
+    private static final String LOCK = ".lock", MANIFEST = "outputs";
+    private static final String FILE = "file", DIR = "dir", NONE = "none";
+
+    private static final Map<Path, Object> monitors = new ConcurrentHashMap<>();
+
+    private final Path dir;
+    private final long maxBytes;
+    private final Duration maxAge;
+
+    /**
+     * Creates a build cache
+     * @param dir the cache directory
+     * @param maxBytes the maximum total size of cached outputs
+     * @param maxAge the maximum time that an entry is kept without being used
+     */
+    public AntBuildCache(File dir, long maxBytes, Duration maxAge) {
+        this.dir = dir.getAbsoluteFile().toPath();
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Restores the outputs of a cached task execution
+     * @param key the task fingerprint
+     * @param outputs the declared outputs of the task
+     * @return {@literal true} if the entry was found and its outputs were restored
+     */
+    boolean restore(String key, List<File> outputs) {
+        return locked(() -> {
+            Path entry = dir.resolve(key);
+            if (!Files.isDirectory(entry)) return false;
+            List<String> kinds = Files.readAllLines(entry.resolve(MANIFEST));
+            if (kinds.size() != outputs.size() + 1) return false;
+
+            for (int i = 0; i < outputs.size(); i++) {
+                Path output = outputs.get(i).toPath(), cached = entry.resolve(Integer.toString(i));
+                delete(output);
+                switch (kinds.get(i)) {
+                    case FILE -> {
+                        Files.createDirectories(output.getParent());
+                        Files.copy(cached, output, StandardCopyOption.COPY_ATTRIBUTES);
+                    }
+                    case DIR -> copyTree(cached, output);
+                }
+            }
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return true;
+        });
+    }
+
+    /**
+     * Stores the outputs of a task execution
+     * @param key the task fingerprint
+     * @param outputs the declared outputs of the task
+     * @param project the project that failures to store the outputs are logged to
+     */
+    void store(String key, List<File> outputs, Project project) {
+        Path entry = dir.resolve(key);
+        if (Files.isDirectory(entry)) return;
+
+        Path tmp = dir.resolve("tmp-" + UUID.randomUUID());
+        try {
+            Files.createDirectories(tmp);
+            List<String> kinds = new ArrayList<>();
+            long size = 0;
+            for (int i = 0; i < outputs.size(); i++) {
+                Path output = outputs.get(i).toPath(), cached = tmp.resolve(Integer.toString(i));
+                if (Files.isDirectory(output)) {
+                    size += copyTree(output, cached);
+                    kinds.add(DIR);
+                } else if (Files.isRegularFile(output)) {
+                    Files.copy(output, cached, StandardCopyOption.COPY_ATTRIBUTES);
+                    size += Files.size(cached);
+                    kinds.add(FILE);
+                } else {
+                    kinds.add(NONE);
+                }
+            }
+            kinds.add(Long.toString(size));
+            Files.write(tmp.resolve(MANIFEST), kinds);
+            try {
+                Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+                // another build stored the same entry first
+            }
+        } catch (IOException e) {
+            project.log("Cannot store outputs in build cache " + dir + ": " + e, Project.MSG_WARN);
+        } finally {
+            try {
+                delete(tmp);
+            } catch (IOException e) {
+                throw new BuildException(e);
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Removes entries that are too old, then least recently used entries until the cache is within its size limit
+     */
+    public void evict() {
+        locked(() -> {
+            record Entry(Path path, long used, long size) {}
+            List<Entry> entries = new ArrayList<>();
+            try (Stream<Path> list = Files.list(dir)) {
+                for (Path path : (Iterable<Path>) list::iterator) {
+                    Path manifest = path.resolve(MANIFEST);
+                    if (path.getFileName().toString().startsWith("tmp-") || !Files.isRegularFile(manifest)) continue;
+                    List<String> lines = Files.readAllLines(manifest);
+                    entries.add(new Entry(path, Files.getLastModifiedTime(path).toMillis(),
+                            Long.parseLong(lines.get(lines.size() - 1))));
+                }
+            }
+            entries.sort((a, b) -> Long.compare(b.used(), a.used()));
+
+            long cutoff = System.currentTimeMillis() - maxAge.toMillis(), total = 0;
+            for (Entry entry : entries) {
+                if (entry.used() < cutoff || total + entry.size() > maxBytes) {
+                    delete(entry.path());
+                } else {
+                    total += entry.size();
+                }
+            }
+            return true;
+        });
+    }
+
+    private interface Locked {
+        boolean run() throws IOException;
+    }
+
+    private boolean locked(Locked action) {
+        synchronized (monitors.computeIfAbsent(dir, d -> new Object())) {
+            try {
+                Files.createDirectories(dir);
+                try (FileChannel channel = FileChannel.open(dir.resolve(LOCK),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    FileLock lock = channel.lock();
+                    try {
+                        return action.run();
+                    } finally {
+                        lock.release();
+                    }
+                }
+            } catch (IOException e) {
+                throw new BuildException("Build cache failure in " + dir, e);
+            }
+        }
+    }
+
+    private static long copyTree(Path from, Path to) throws IOException {
+        long[] size = {0};
+        Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(to.resolve(from.relativize(d).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.copy(file, to.resolve(from.relativize(file).toString()), StandardCopyOption.COPY_ATTRIBUTES);
+                size[0] += attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return size[0];
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (!Files.exists(path)) return;
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.StandardProtocolFamily;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A build daemon that keeps Ant and the Antsy facades loaded and JIT-compiled across builds.
+ * <p/>
+ * Clients connect over a Unix-domain socket and send a request of text lines:
+ * the classpath of the build program, the name of its main class, its arguments, and an empty line.
+ * The daemon loads the program in a new class loader whose parent holds Ant and Antsy,
+ * runs its {@code main} method, and streams its standard output and error back to the client.
+ * The response ends with a line starting with {@value #EXIT} followed by the exit status,
+ * the time taken to load the program and the time taken to run it, in milliseconds.
+ * <p/>
+ * Only the JVM and the loaded and compiled Ant and Antsy classes are kept warm.
+ * Each build program runs in its own class loader and creates its own {@link AntProject},
+ * and nothing from a build is kept after it ends,
+ * so the only idle state is the daemon itself, which shuts down when it has been idle for longer than its timeout.
+ * <p/>
+ * Builds run one at a time, because their output is captured by replacing {@link System#out} and {@link System#err}.
+ * Build programs must not call {@link System#exit(int)}.
+ *
+ * <pre>
+ * java -cp antsy.jar:ant.jar org.copalis.antsy.AntDaemon serve /tmp/antsy.sock 600
+ * java -cp antsy.jar:ant.jar org.copalis.antsy.AntDaemon run /tmp/antsy.sock build/classes my.Build arg1
+ * </pre>
+ *
+ * @author gilesjb
+ */
+public class AntDaemon {
+
+    /**
+     * Prefix of the last line of each response
+     */
+    public static final String EXIT = "\0antsy-exit ";
+
+    private final Path socket;
+    private final long idleMillis;
+    private final ReentrantLock building = new ReentrantLock();
+    private final PrintStream console = System.out;
+    private final Redirect redirect = new Redirect();
+    private volatile long lastUsed = System.currentTimeMillis();
+    private volatile Selector selector;
+    private int builds = 0;
+
+    /**
+     * Creates a daemon
+     * @param socket the path of the Unix-domain socket to listen on
+     * @param idleSeconds the number of idle seconds after which the daemon shuts down
+     */
+    public AntDaemon(Path socket, long idleSeconds) {
+        this.socket = socket;
+        this.idleMillis = TimeUnit.SECONDS.toMillis(idleSeconds);
+    }
+
+    /**
+     * Accepts and runs builds until the daemon has been idle for longer than its timeout
+     * @throws IOException if the socket cannot be opened
+     */
+    public void serve() throws IOException {
+        long start = System.nanoTime();
+        new AntProject().project(); // load Ant and the facade runtime before the first build
+        console.printf("Antsy daemon listening on %s, warmed up in %d ms%n",
+                socket, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        PrintStream out = new PrintStream(redirect, true);
+        System.setOut(out);
+        System.setErr(out);
+
+        Files.deleteIfExists(socket);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+                Selector selector = Selector.open()) {
+            this.selector = selector;
+            server.bind(UnixDomainSocketAddress.of(socket));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            for (long idle; (idle = idleMillis - (System.currentTimeMillis() - lastUsed)) > 0 || building.isLocked(); ) {
+                // a finished build wakes the selector, so the timeout is recomputed from its end
+                selector.select(building.isLocked() ? 0 : idle);
+                selector.selectedKeys().clear();
+                for (SocketChannel client; (client = server.accept()) != null; ) {
+                    lastUsed = System.currentTimeMillis();
+                    SocketChannel accepted = client;
+                    Thread thread = new Thread(() -> handle(accepted), "antsy-client");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            }
+        } finally {
+            Files.deleteIfExists(socket);
+            System.setOut(console);
+            System.setErr(console);
+        }
+        console.println("Antsy daemon shut down after " + builds + " builds");
+    }
+
+    private void handle(SocketChannel channel) {
+        try (channel;
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+                OutputStream out = Channels.newOutputStream(channel)) {
+            String classpath = in.readLine(), main = in.readLine();
+            List<String> args = new ArrayList<>();
+            for (String line; (line = in.readLine()) != null && !line.isEmpty(); ) {
+                args.add(line);
+            }
+
+            building.lock();
+            try {
+                redirect.target = out;
+                int status = 0;
+                long start = System.nanoTime(), loaded = start;
+                Thread thread = Thread.currentThread();
+                ClassLoader context = thread.getContextClassLoader();
+                try (URLClassLoader loader = loader(classpath)) {
+                    thread.setContextClassLoader(loader);
+                    Method method = Class.forName(main, true, loader).getMethod("main", String[].class);
+                    loaded = System.nanoTime();
+                    method.invoke(null, (Object) args.toArray(new String[0]));
+                } catch (InvocationTargetException e) {
+                    e.getCause().printStackTrace();
+                    status = 1;
+                } catch (Throwable e) { // including linkage errors, so that the client always gets its exit line
+                    e.printStackTrace();
+                    status = 2;
+                } finally {
+                    thread.setContextClassLoader(context);
+                    System.out.flush();
+                    redirect.target = null;
+                    builds++;
+                }
+                long end = System.nanoTime();
+                out.write((EXIT + status + ' ' + TimeUnit.NANOSECONDS.toMillis(loaded - start) + ' '
+                        + TimeUnit.NANOSECONDS.toMillis(end - loaded) + '\n').getBytes(StandardCharsets.UTF_8));
+            } finally {
+                lastUsed = System.currentTimeMillis();
+                building.unlock();
+                Selector selector = this.selector;
+                if (selector != null) selector.wakeup();
+            }
+        } catch (IOException e) {
+            console.println("Antsy daemon client failed: " + e);
+        }
+    }
+
+    private static URLClassLoader loader(String classpath) throws IOException {
+        List<URL> urls = new ArrayList<>();
+        for (String entry : classpath.split(File.pathSeparator)) {
+            if (!entry.isEmpty()) urls.add(new File(entry).toURI().toURL());
+        }
+        return new URLClassLoader(urls.toArray(new URL[0]), AntDaemon.class.getClassLoader());
+    }
+
+    /**
+     * Sends output to the client of the current build, or to the console between builds
+     */
+    private class Redirect extends OutputStream {
+        volatile OutputStream target;
+
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            OutputStream out = target;
+            (out == null ? console : out).write(b, off, len);
+        }
+
+        public void flush() throws IOException {
+            OutputStream out = target;
+            (out == null ? console : out).flush();
+        }
+    }
+
+    /**
+     * Submits a build to a daemon and copies its output to this process's standard output
+     * @param socket the daemon socket
+     * @param classpath the classpath of the build program
+     * @param main the main class of the build program
+     * @param args the program arguments
+     * @return the exit status of the build
+     * @throws IOException if the daemon cannot be reached
+     */
+    public static int submit(Path socket, String classpath, String main, String... args) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            StringBuilder request = new StringBuilder(classpath).append('\n').append(main).append('\n');
+            for (String arg : args) {
+                request.append(arg).append('\n');
+            }
+            request.append('\n');
+            Channels.newOutputStream(channel).write(request.toString().getBytes(StandardCharsets.UTF_8));
+
+            InputStream in = Channels.newInputStream(channel);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            for (String line; (line = reader.readLine()) != null; ) {
+                if (line.startsWith(EXIT)) {
+                    String[] result = line.substring(EXIT.length()).split(" ");
+                    System.err.printf("[daemon] loaded in %s ms, ran in %s ms%n", result[1], result[2]);
+                    return Integer.parseInt(result[0]);
+                }
+                System.out.println(line);
+            }
+            return 3;
+        }
+    }
+
+    public static void main(String... args) throws IOException {
+        if (args.length >= 2 && args[0].equals("serve")) {
+            new AntDaemon(Path.of(args[1]), args.length > 2 ? Long.parseLong(args[2]) : 600).serve();
+        } else if (args.length >= 4 && args[0].equals("run")) {
+            String[] rest = Arrays.copyOfRange(args, 4, args.length);
+            System.exit(submit(Path.of(args[1]), args[2], args[3], rest));
+        } else {
+            System.err.println("usage: AntDaemon serve <socket> [idle-seconds]");
+            System.err.println("       AntDaemon run <socket> <classpath> <main-class> [args...]");
+            System.exit(2);
+        }
+    }
+}
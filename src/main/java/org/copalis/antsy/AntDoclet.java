@@ -15,19 +15,31 @@
  */
 package org.copalis.antsy;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -63,21 +75,66 @@ public class AntDoclet implements Doclet {
     public static final String
         OPT_CATALOG_CLASS = "-catalog",
         OPT_DESTINATION_DIR = "-d",
-        OPT_PACKAGE = "-outPackage";
+        OPT_PACKAGE = "-outPackage",
+        OPT_CONFIGURED = "-configured";
+
+    /**
+     * Values of {@value #OPT_CONFIGURED}: facades of {@code addConfigured} methods add the element
+     * in an anonymous subclass that overrides {@link AntElement#end()}, which is the default,
+     * or in a callback that is set with {@link AntElement#onEnd}, which adds no classes
+     */
+    public static final String CONFIGURED_SUBCLASS = "subclass", CONFIGURED_CALLBACK = "callback";
+
+    public AntDoclet() {
+    }
+
+    /**
+     * Creates a generator that is driven directly rather than by javadoc
+     * @param base the destination directory
+     * @param catalog the qualified name of the catalog interface
+     * @param basePackage the package that replaces {@code org.apache.tools.ant} in facade names
+     * @see AntFacadeGenerator
+     */
+    AntDoclet(String base, String catalog, String basePackage) {
+        this.base = base;
+        this.catalog = catalog;
+        this.basePackage = basePackage;
+    }
 
     public static int optionLength(String name) {
         if (OPT_DESTINATION_DIR.equals(name) ||
                 OPT_CATALOG_CLASS.equals(name) ||
-                OPT_PACKAGE.equals(name)) return 2;
+                OPT_PACKAGE.equals(name) ||
+                OPT_CONFIGURED.equals(name)) return 2;
         return 0;
     }
 
-    private PrintStream out;
+    private StringBuilder out;
+    private final List<CompletableFuture<Boolean>> writes = new ArrayList<>();
     private int indent = 0;
     private String base, catalog, basePackage;
+    private boolean configuredCallback;
+
+    /**
+     * Sets how facades of {@code addConfigured} methods add the element to its parent
+     * @param mode {@value #CONFIGURED_SUBCLASS} or {@value #CONFIGURED_CALLBACK}
+     * @return this
+     */
+    AntDoclet configured(String mode) {
+        if (!CONFIGURED_SUBCLASS.equals(mode) && !CONFIGURED_CALLBACK.equals(mode)) {
+            throw new IllegalArgumentException("Unknown " + OPT_CONFIGURED + " mode: " + mode);
+        }
+        configuredCallback = CONFIGURED_CALLBACK.equals(mode);
+        return this;
+    }
 
     private DocTrees docTrees;
 
+    /**
+     * Members of the generated and wrapped classes that are accessed reflectively, keyed by binary class name
+     */
+    private final Map<String, String> reflected = new TreeMap<>();
+
     private LinkedList<TypeElement> types = new LinkedList<TypeElement>();
     private HashSet<TypeElement> seen = new HashSet<TypeElement>();
 
@@ -91,7 +148,47 @@ public class AntDoclet implements Doclet {
 
     void code(String str) {
         String align = "    ".repeat(indent);
-        out.println(align + str.replace("\n", "\n" + align));
+        out.append(align).append(str.replace("\n", "\n" + align)).append(System.lineSeparator());
+    }
+
+    /**
+     * Writes the generated source in the background, unless the file already has identical content
+     * @param packg the package name
+     * @param name the class name
+     */
+    void write(String packg, String name) {
+        Path path = Paths.get(base, packg.split("\\.")).resolve(name + ".java");
+        byte[] content = out.toString().getBytes(Charset.defaultCharset());
+        writes.add(CompletableFuture.supplyAsync(() -> writeIfChanged(path, content)));
+    }
+
+    /**
+     * Writes a resource in the background, unless the file already has identical content
+     * @param path the path of the resource, relative to the destination directory
+     * @param content the content
+     */
+    void writeResource(String path, String content) {
+        Path file = Paths.get(base, path.split("/"));
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        writes.add(CompletableFuture.supplyAsync(() -> writeIfChanged(file, bytes)));
+    }
+
+    static boolean writeIfChanged(Path path, byte[] content) {
+        try {
+            if (Files.isRegularFile(path) && Files.size(path) == content.length
+                    && Arrays.equals(Files.readAllBytes(path), content)) return false;
+            Files.createDirectories(path.getParent());
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     void format(String str, Object... args) {
@@ -99,11 +196,11 @@ public class AntDoclet implements Doclet {
     }
 
     void document(Element doc) {
-        javaDoc(docTrees.getDocCommentTree(doc));
+        if (docTrees != null) javaDoc(docTrees.getDocCommentTree(doc));
     }
 
     void document(ExecutableElement doc) {
-        javaDoc(docTrees.getDocCommentTree(doc));
+        if (docTrees != null) javaDoc(docTrees.getDocCommentTree(doc));
     }
 
     void javaDoc(Object obj) {
@@ -117,36 +214,90 @@ public class AntDoclet implements Doclet {
         code(" */");
     }
 
-    void processRoot(DocletEnvironment root) throws FileNotFoundException {
-        Set<TypeElement> elements = root.getIncludedElements().stream()
+    void processRoot(DocletEnvironment root) throws IOException {
+        docTrees = root.getDocTrees();
+        generate(root.getIncludedElements());
+    }
+
+    /**
+     * Generates the catalog interface and the facades for a set of classes.
+     * Sources are generated on the calling thread, because the language model is not thread-safe,
+     * and written to files in parallel.
+     * Files whose content has not changed are not rewritten, so that their timestamps are preserved.
+     * @param included the classes, of which the concrete Ant tasks are processed
+     * @throws IOException if an output file cannot be written
+     */
+    void generate(Set<? extends Element> included) throws IOException {
+        Set<TypeElement> elements = included.stream()
                 .filter(el -> el.getKind().isClass())
                 .map(el -> (TypeElement) el)
                 .collect(Collectors.toCollection(() ->
                         new TreeSet<>(Comparator.comparing(t -> t.getSimpleName().toString()))));
 
-        docTrees = root.getDocTrees();
-
         String packag = catalog.substring(0, catalog.lastIndexOf('.'));
         String cat = catalog.substring(catalog.lastIndexOf('.') + 1);
-        String dir = base + '/' + packag.replace('.', '/');
-        new File(dir).mkdirs();
-        out = new PrintStream(dir + '/' + cat + ".java");
-        try {
-            code("package " + packag + ';');
-            code("");
-            javaDoc("Class constants for Ant Task facades");
-            code("public interface " + cat + " {");
-            for (TypeElement el : elements) {
-                processTask(el);
-            }
-            code("}");
-        } finally {
-            out.close();
+        out = new StringBuilder();
+        code("package " + packag + ';');
+        code("");
+        javaDoc("Class constants for Ant Task facades");
+        code("public interface " + cat + " {");
+        for (TypeElement el : elements) {
+            processTask(el);
         }
+        code("}");
+        write(packag, cat);
 
         while (!types.isEmpty()) {
             processType(types.removeFirst());
         }
+        writeNativeImageConfig(packag);
+
+        try {
+            CompletableFuture.allOf(writes.toArray(CompletableFuture<?>[]::new)).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException u) throw u.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the GraalVM native-image configuration for the facades, which is read from the class path
+     * when the facade jar is compiled into a native image.
+     * Facades of tasks are created with {@link AntTask#create} through method handles on their constructors,
+     * and Ant uses introspection on the public methods of tasks and types to configure them from elements,
+     * so these are registered for reflection, and the Ant resources that a project loads are included.
+     * @param packag the package of the catalog interface, which names the configuration directory
+     */
+    void writeNativeImageConfig(String packag) {
+        String dir = "META-INF/native-image/" + packag + "/facades/";
+        StringBuilder json = new StringBuilder("[");
+        reflected.forEach((name, members) ->
+            json.append(json.length() > 1 ? "," : "").append("\n  {\"name\": \"").append(name).append("\", ")
+                .append(members).append('}'));
+        writeResource(dir + "reflect-config.json", json.append("\n]\n").toString());
+        writeResource(dir + "resource-config.json", String.join("\n",
+                "{",
+                "  \"resources\": {",
+                "    \"includes\": [",
+                "      {\"pattern\": \"\\\\Qorg/apache/tools/ant/version.txt\\\\E\"},",
+                "      {\"pattern\": \"org/apache/tools/ant/.*\\\\.properties\"},",
+                "      {\"pattern\": \"org/apache/tools/ant/.*/antlib\\\\.xml\"}",
+                "    ]",
+                "  }",
+                "}", ""));
+        writeResource(dir + "native-image.properties", String.join("\n",
+                "# Generated by " + getClass().getSimpleName() + " for the facades of " + catalog,
+                "Args = --no-fallback --enable-url-protocols=http,https", ""));
+    }
+
+    void reflectAntType(TypeElement type) {
+        reflected.put(binaryName(type), "\"allPublicConstructors\": true, \"allPublicMethods\": true");
+    }
+
+    static String binaryName(TypeElement type) {
+        return type.getEnclosingElement() instanceof TypeElement outer
+                ? binaryName(outer) + '$' + type.getSimpleName()
+                : type.getQualifiedName().toString();
     }
 
     void processTask(TypeElement task) {
@@ -162,7 +313,10 @@ public class AntDoclet implements Doclet {
         document(task);
         format("static Class<%s> %s = %s.class;", name, task.getSimpleName().toString().toLowerCase(), name);
         indent--;
-        PrintStream tmp = out;
+        reflectAntType(task);
+        reflected.put(name, "\"methods\": [{\"name\": \"<init>\", "
+                + "\"parameterTypes\": [\"java.lang.String\", \"org.apache.tools.ant.Project\"]}]");
+        StringBuilder tmp = out;
         try {
             processTaskType(task);
         } finally {
@@ -175,64 +329,53 @@ public class AntDoclet implements Doclet {
         String packg = full.substring(0, full.lastIndexOf('.'));
         String name = full.substring(full.lastIndexOf('.') + 1);
 
+        out = new StringBuilder();
         try {
-            String dir = base + '/' + packg.replace('.', '/');
-            new File(dir).mkdirs();
-            out = new PrintStream(dir + '/' + name + ".java");
-            try {
-                code("package " + packg + ';');
-
-                code("");
-                document(type);
-                format("public class %s extends %s<%s> {",
-                        name, AntTask.class.getName(), type.getQualifiedName());
-                indent++;
-                format("public %s(String name, org.apache.tools.ant.Project project) {super(name, %s.class, project);}",
-                        name, type.getQualifiedName());
-                processMethods(full, type);
-            } finally {
-                indent--;
-                code("}");
-                out.close();
-            }
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
+            code("package " + packg + ';');
+
+            code("");
+            document(type);
+            format("public class %s extends %s<%s> {",
+                    name, AntTask.class.getName(), type.getQualifiedName());
+            indent++;
+            format("public %s(String name, org.apache.tools.ant.Project project) {super(name, %s.class, project);}",
+                    name, type.getQualifiedName());
+            processMethods(full, type);
+        } finally {
+            indent--;
+            code("}");
         }
+        write(packg, name);
     }
 
     void processType(TypeElement type) {
+        reflectAntType(type);
         boolean constructable = isConstructable(type);
         String full = refName(type);
         String packg = full.substring(0, full.lastIndexOf('.'));
         String name = full.substring(full.lastIndexOf('.') + 1);
 
+        out = new StringBuilder();
         try {
-            String dir = base + '/' + packg.replace('.', '/');
-            new File(dir).mkdirs();
-            out = new PrintStream(dir + '/' + name + ".java");
-            try {
-                code("package " + packg + ';');
-
-                code("");
-                document(type);
-                format("public class %s<P> extends %s<%s, P> {",
-                    name, AntElement.class.getName(), type.getQualifiedName());
-                indent++;
-                if (constructable) {
-                    format("public static %s<Void> create() {return new %1$s<Void>(new %s(), null);}",
-                            name, type.getQualifiedName());
-                }
-                format("public %s(%s element, P parent) {super(element, parent);}",
-                        name, type.getQualifiedName());
-                processMethods(full + "<P>", type);
-            } finally {
-                indent--;
-                code("}");
-                out.close();
+            code("package " + packg + ';');
+
+            code("");
+            document(type);
+            format("public class %s<P> extends %s<%s, P> {",
+                name, AntElement.class.getName(), type.getQualifiedName());
+            indent++;
+            if (constructable) {
+                format("public static %s<Void> create() {return new %1$s<Void>(new %s(), null);}",
+                        name, instantiated(type.getQualifiedName().toString()));
             }
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
+            format("public %s(%s element, P parent) {super(element, parent);}",
+                    name, type.getQualifiedName());
+            processMethods(full + "<P>", type);
+        } finally {
+            indent--;
+            code("}");
         }
+        write(packg, name);
     }
 
     void processMethods(String typeName, TypeElement task) {
@@ -322,6 +465,21 @@ public class AntDoclet implements Doclet {
         return constructors == 0;
     }
 
+    /**
+     * Ant types that facades create as Antsy subclasses
+     */
+    private static final Map<String, String> substitutes = Map.of(
+            "org.apache.tools.ant.types.FileSet", "org.copalis.antsy.ParallelFileSet");
+
+    /**
+     * Gets the class that facades should instantiate for an Ant type
+     * @param type the qualified name of the Ant type
+     * @return the qualified name of the type or its substitute
+     */
+    static String instantiated(String type) {
+        return substitutes.getOrDefault(type, type);
+    }
+
     static String tries(ExecutableElement method) {
         return method.getThrownTypes().isEmpty() ? "" : "try {";
     }
@@ -409,11 +567,18 @@ public class AntDoclet implements Doclet {
                         String plain = lt >= 0? container.substring(0, lt) : container;
                         doc.queueType(type0);
                         doc.document(method);
+                        if (doc.configuredCallback) {
+                            doc.format("public %s<%s> %s() //ADD_CONFIGURED\n\t" +
+                                        "{return %s.onEnd(new %1$s<%2$s>(new %s(), this), _obj_ -> {%sis().%3$s(_obj_);%s});}",
+                                    doc.refName(type0), container, method.getSimpleName(), AntElement.class.getName(),
+                                    instantiated(qualifiedName(tm0)), tries(method), except(method));
+                            return true;
+                        }
                         doc.format("public %s<%s> %s() //ADD_CONFIGURED\n\t" +
                                     "{return new %1$s<%2$s>(new %s(), this) {\n\t\t" +
                                         "public %2$s end() {%s%s.this.is().%3$s(is()); return super.end();%s}};}",
-                                doc.refName(type0), container, method.getSimpleName(), qualifiedName(tm0),
-                                tries(method), plain, except(method));
+                                doc.refName(type0), container, method.getSimpleName(),
+                                instantiated(qualifiedName(tm0)), tries(method), plain, except(method));
                         return true;
                     }
                 }
@@ -452,9 +617,10 @@ public class AntDoclet implements Doclet {
                         doc.queueType(type0);
                         doc.document(method);
                         doc.format("public %s<%s> %s() //ADD_NEW\n\t" +
-                                "{%s _obj_ = new %4$s(); %sis().%s(_obj_);%s return new %1$s<%2$s>(_obj_, this);}",
+                                "{%s _obj_ = new %s(); %sis().%s(_obj_);%s return new %1$s<%2$s>(_obj_, this);}",
                                 doc.refName(type0), container, match, qualifiedName(tm0),
-                                tries(method), method.getSimpleName(), except(method));
+                                instantiated(qualifiedName(tm0)), tries(method),
+                                method.getSimpleName(), except(method));
                         return true;
                     }
                 }
@@ -528,7 +694,8 @@ public class AntDoclet implements Doclet {
         return new HashSet<>(Arrays.asList(
                 option(OPT_CATALOG_CLASS, "class", x -> { AntDoclet.this.catalog = x; }),
                 option(OPT_DESTINATION_DIR, "destination", x -> { AntDoclet.this.base = x; }),
-                option(OPT_PACKAGE, "package", x -> { AntDoclet.this.basePackage = x; })
+                option(OPT_PACKAGE, "package", x -> { AntDoclet.this.basePackage = x; }),
+                option(OPT_CONFIGURED, "mode", AntDoclet.this::configured)
             ));
     }
 
@@ -540,7 +707,7 @@ public class AntDoclet implements Doclet {
         try {
             processRoot(environment);
             return true;
-        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
             e.printStackTrace();
             return false;
         }
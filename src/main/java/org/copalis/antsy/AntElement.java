@@ -15,6 +15,8 @@
  */
 package org.copalis.antsy;
 
+import java.util.function.Consumer;
+
 import org.apache.tools.ant.ProjectComponent;
 import org.apache.tools.ant.Task;
 
@@ -27,6 +29,7 @@ import org.apache.tools.ant.Task;
  */
 public abstract class AntElement<T, P> extends AntRef<T> {
     private P parent;
+    private Consumer<? super T> ended;
     
     @SuppressWarnings("unchecked")
     protected AntElement(T element, P parent) {
@@ -42,6 +45,21 @@ public abstract class AntElement<T, P> extends AntRef<T> {
         this.parent = parent;
     }
     
+    /**
+     * Sets an action to be performed with the wrapped object when an element is ended.
+     * Facades use this to add elements that Ant expects to be configured before they are added to their parent.
+     * 
+     * @param <E> the element type
+     * @param <T> the type of the wrapped object
+     * @param element the element
+     * @param action the action, which replaces any previous action
+     * @return the element
+     */
+    public static <E extends AntElement<T, ?>, T> E onEnd(E element, Consumer<? super T> action) {
+        ((AntElement<T, ?>) element).ended = action;
+        return element;
+    }
+    
     /**
      * Ends this element and returns the parent.
      * The method should only be called once on any element.
@@ -50,6 +68,7 @@ public abstract class AntElement<T, P> extends AntRef<T> {
      */
     public P end() {
         try {
+            if (ended != null) ended.accept(is());
             return parent;
         } finally {
             parent = null;
@@ -0,0 +1,51 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import org.apache.tools.ant.Task;
+
+/**
+ * An alternative implementation of an Ant task.
+ * <p/>
+ * When an engine is registered for a task class, facades of that class ask the engine whether it supports
+ * the way the task has been configured, and if so run the engine instead of the task's own implementation.
+ * Build listeners are notified that the task started and finished in the usual way.
+ *
+ * @param <T> the type of task that the engine can execute
+ * @author gilesjb
+ * @see AntProject#engine(Class, AntEngine)
+ */
+public interface AntEngine<T extends Task> {
+
+    /**
+     * Name of the project reference that holds the registered engines
+     */
+    String REFERENCE = "antsy.engines";
+
+    /**
+     * Determines whether this engine can execute a task
+     * @param task a configured task
+     * @return {@literal true} if the engine supports all the attributes and elements that have been set
+     */
+    boolean supports(T task);
+
+    /**
+     * Executes a task that this engine {@link #supports(Task) supports}
+     * @param task the task
+     * @throws org.apache.tools.ant.BuildException if the task fails
+     */
+    void execute(T task);
+}
@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.PackageElement;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import com.sun.source.util.JavacTask;
+
+/**
+ * Generates the same facade classes as {@link AntDoclet}, reading the Ant classes from compiled jars
+ * instead of running javadoc over the Ant source.
+ * <p/>
+ * The classes are read through the compiler's class-file reader,
+ * which presents them with the same language model that javadoc provides,
+ * so the same {@link AntDoclet.Processor} rules are applied.
+ * The generated facades have no documentation comments,
+ * and parameter names are taken from the class files where they are present.
+ *
+ * <pre>
+ * java org.copalis.antsy.AntFacadeGenerator -classpath ant.jar -d target/main/java
+ *     -catalog org.copalis.antsy.Tasks -outPackage org.copalis.antsy org.apache.tools.ant.taskdefs
+ * </pre>
+ *
+ * @author gilesjb
+ */
+public class AntFacadeGenerator {
+
+    public static final String OPT_CLASSPATH = "-classpath";
+
+    public static void main(String... args) throws IOException {
+        String classpath = null, base = null, catalog = null, basePackage = null;
+        String configured = AntDoclet.CONFIGURED_SUBCLASS;
+        List<String> packages = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case OPT_CLASSPATH -> classpath = args[++i];
+                case AntDoclet.OPT_DESTINATION_DIR -> base = args[++i];
+                case AntDoclet.OPT_CATALOG_CLASS -> catalog = args[++i];
+                case AntDoclet.OPT_PACKAGE -> basePackage = args[++i];
+                case AntDoclet.OPT_CONFIGURED -> configured = args[++i];
+                default -> packages.add(args[i]);
+            }
+        }
+        if (classpath == null || base == null || catalog == null || basePackage == null || packages.isEmpty()) {
+            System.err.println("usage: AntFacadeGenerator -classpath <jars> -d <dir> -catalog <class> "
+                    + "-outPackage <package> [-configured subclass|callback] <package>...");
+            System.exit(2);
+        }
+
+        new AntDoclet(base, catalog, basePackage).configured(configured).generate(classes(classpath, packages));
+    }
+
+    /**
+     * Reads the classes in the specified packages
+     * @param classpath the jars and directories that contain the classes
+     * @param packages the names of the packages
+     * @return the classes, as elements of the language model
+     */
+    static Set<Element> classes(String classpath, List<String> packages) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        JavacTask task = (JavacTask) compiler.getTask(null, null, null,
+                List.of("-proc:none", "-classpath", classpath), null, null);
+
+        Set<Element> classes = new HashSet<>();
+        for (String name : packages) {
+            PackageElement packg = task.getElements().getPackageElement(name);
+            if (packg == null) throw new IllegalArgumentException("Package not found: " + name);
+            classes.addAll(packg.getEnclosedElements());
+        }
+        return classes;
+    }
+}
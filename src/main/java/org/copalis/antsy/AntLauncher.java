@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Launches build programs in new JVMs that share an AppCDS archive of the Ant and Antsy classes,
+ * so that the classes are mapped from the archive already parsed and verified instead of being loaded from jars.
+ * <p/>
+ * If the archive does not exist, the first program that is launched creates it when it exits,
+ * with the classes that it loaded, and later programs use it.
+ * A better archive can be created ahead of time by a training run of this class's {@link #main main} method,
+ * which runs several programs in one JVM, as the {@code cds-archive} target of the Antsy build does.
+ * An archive can only be used with the class path that it was created with, or that class path
+ * followed by more entries, and the class path must only contain jars.
+ * If the archive cannot be used, the JVM logs a warning and loads the classes as usual.
+ *
+ * <pre>
+ * java -XX:ArchiveClassesAtExit=antsy.jsa -cp antsy.jar:ant.jar:build.jar org.copalis.antsy.AntLauncher my.Build
+ * new AntLauncher(new File("antsy.jsa"), "antsy.jar:ant.jar:build.jar").run("my.Build", "dist");
+ * </pre>
+ *
+ * @author gilesjb
+ */
+public class AntLauncher {
+
+    private final File archive;
+    private final String classpath;
+    private final List<String> jvmOptions = new ArrayList<>();
+
+    /**
+     * Creates a launcher for programs with the class path of this JVM
+     * @param archive the CDS archive
+     */
+    public AntLauncher(File archive) {
+        this(archive, System.getProperty("java.class.path"));
+    }
+
+    /**
+     * Creates a launcher
+     * @param archive the CDS archive
+     * @param classpath the class path of the programs, which should start with the class path of the archive
+     */
+    public AntLauncher(File archive, String classpath) {
+        this.archive = archive;
+        this.classpath = classpath;
+    }
+
+    /**
+     * Adds options for the JVMs
+     * @param options options such as {@code -Xmx512m}
+     * @return this
+     */
+    public AntLauncher jvmOptions(String... options) {
+        jvmOptions.addAll(Arrays.asList(options));
+        return this;
+    }
+
+    /**
+     * Gets the command that launches a program
+     * @param mainClass the name of the program's main class
+     * @param args the program's arguments
+     * @return the command
+     */
+    public List<String> command(String mainClass, String... args) {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add(archive.isFile()
+                ? "-XX:SharedArchiveFile=" + archive.getAbsolutePath()
+                : "-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(classpath);
+        command.add(mainClass);
+        command.addAll(Arrays.asList(args));
+        return command;
+    }
+
+    /**
+     * Runs a program, with the standard streams of this JVM, and waits for it to exit
+     * @param mainClass the name of the program's main class
+     * @param args the program's arguments
+     * @return the exit status of the program
+     * @throws BuildException if the JVM cannot be started
+     */
+    public int run(String mainClass, String... args) {
+        try {
+            return new ProcessBuilder(command(mainClass, args)).inheritIO().start().waitFor();
+        } catch (IOException e) {
+            throw new BuildException("Unable to start JVM", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while waiting for " + mainClass, e);
+        }
+    }
+
+    /**
+     * Runs the main methods of several programs in turn, with no arguments,
+     * so that a training run that creates a CDS archive loads the classes of all of them.
+     * A program that fails is reported, and the others still run.
+     * @param mainClasses the names of the programs' main classes
+     */
+    public static void main(String... mainClasses) throws ClassNotFoundException, NoSuchMethodException {
+        for (String name : mainClasses) {
+            Method main = Class.forName(name).getMethod("main", String[].class);
+            try {
+                main.invoke(null, (Object) new String[0]);
+            } catch (IllegalAccessException e) {
+                System.err.println(name + ": " + e);
+            } catch (InvocationTargetException e) {
+                System.err.println(name + " failed: " + e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+
+/**
+ * A build listener that records the latency, count and failures of tasks and targets, grouped by name.
+ * <p/>
+ * Latencies are recorded in histograms with fixed buckets, using striped counters
+ * so that concurrent tasks do not contend.
+ * Snapshots can be exported in the Prometheus text format or as JSON.
+ *
+ * @author gilesjb
+ * @see AntProject#metrics()
+ */
+public class AntMetrics implements BuildListener {
+
+    /**
+     * Upper bounds of the histogram buckets, in seconds
+     */
+    static final double[] BUCKETS = {0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60, 300};
+
+    /**
+     * The recorded executions of one task or target name
+     */
+    public static class Timer {
+        private final LongAdder count = new LongAdder(), failures = new LongAdder(), nanos = new LongAdder();
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+
+        Timer() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long elapsed, boolean failed) {
+            count.increment();
+            nanos.add(elapsed);
+            if (failed) failures.increment();
+            double seconds = elapsed / 1e9;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (seconds <= BUCKETS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long failures() {
+            return failures.sum();
+        }
+
+        public double seconds() {
+            return nanos.sum() / 1e9;
+        }
+
+        /**
+         * Gets the cumulative histogram
+         * @return the number of executions that took at most each of the {@link #BUCKETS bucket bounds}
+         */
+        public long[] histogram() {
+            long[] cumulative = new long[buckets.length];
+            long sum = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative[i] = sum += buckets[i].sum();
+            }
+            return cumulative;
+        }
+    }
+
+    private final Map<String, Timer> tasks = new ConcurrentHashMap<>(), targets = new ConcurrentHashMap<>();
+    private final Map<Object, Long> started = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the task timers
+     * @return a snapshot of the timers, by task name
+     */
+    public Map<String, Timer> tasks() {
+        return new TreeMap<>(tasks);
+    }
+
+    /**
+     * Gets the target timers
+     * @return a snapshot of the timers, by target name
+     */
+    public Map<String, Timer> targets() {
+        return new TreeMap<>(targets);
+    }
+
+    @Override public void taskStarted(BuildEvent event) {
+        started.put(event.getTask(), System.nanoTime());
+    }
+
+    @Override public void taskFinished(BuildEvent event) {
+        finished(event.getTask(), tasks, event.getTask().getTaskName(), event);
+    }
+
+    @Override public void targetStarted(BuildEvent event) {
+        started.put(event.getTarget(), System.nanoTime());
+    }
+
+    @Override public void targetFinished(BuildEvent event) {
+        finished(event.getTarget(), targets, event.getTarget().getName(), event);
+    }
+
+    private void finished(Object component, Map<String, Timer> timers, String name, BuildEvent event) {
+        Long start = started.remove(component);
+        if (start == null) return;
+        timers.computeIfAbsent(String.valueOf(name), n -> new Timer())
+            .record(System.nanoTime() - start, event.getException() != null);
+    }
+
+    @Override public void buildStarted(BuildEvent event) {
+    }
+
+    @Override public void buildFinished(BuildEvent event) {
+    }
+
+    @Override public void messageLogged(BuildEvent event) {
+    }
+
+    /**
+     * Exports the metrics in the Prometheus text exposition format
+     * @return histograms of task and target durations, and counters of their failures
+     */
+    public String prometheus() {
+        StringBuilder out = new StringBuilder();
+        prometheus(out, "task", tasks());
+        prometheus(out, "target", targets());
+        return out.toString();
+    }
+
+    private static void prometheus(StringBuilder out, String kind, Map<String, Timer> timers) {
+        String duration = "antsy_" + kind + "_duration_seconds", failures = "antsy_" + kind + "_failures_total";
+        out.append("# HELP ").append(duration).append(" Duration of Ant ").append(kind).append("s\n");
+        out.append("# TYPE ").append(duration).append(" histogram\n");
+        timers.forEach((name, timer) -> {
+            String label = label(kind, name);
+            long[] histogram = timer.histogram();
+            long count = timer.count();
+            for (int i = 0; i < BUCKETS.length; i++) {
+                out.append(duration).append("_bucket{").append(label).append(",le=\"").append(BUCKETS[i])
+                    .append("\"} ").append(histogram[i]).append('\n');
+            }
+            out.append(duration).append("_bucket{").append(label).append(",le=\"+Inf\"} ").append(count).append('\n');
+            out.append(duration).append("_sum{").append(label).append("} ").append(timer.seconds()).append('\n');
+            out.append(duration).append("_count{").append(label).append("} ").append(count).append('\n');
+        });
+        out.append("# HELP ").append(failures).append(" Failed Ant ").append(kind).append("s\n");
+        out.append("# TYPE ").append(failures).append(" counter\n");
+        timers.forEach((name, timer) ->
+                out.append(failures).append('{').append(label(kind, name)).append("} ").append(timer.failures()).append('\n'));
+    }
+
+    private static String label(String kind, String name) {
+        return kind + "=\"" + name.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + '"';
+    }
+
+    /**
+     * Exports the metrics as JSON
+     * @return an object with {@code tasks} and {@code targets} members, each mapping names to their metrics
+     */
+    public String json() {
+        StringBuilder out = new StringBuilder("{\"tasks\":");
+        json(out, tasks());
+        out.append(",\"targets\":");
+        json(out, targets());
+        return out.append('}').toString();
+    }
+
+    private static void json(StringBuilder out, Map<String, Timer> timers) {
+        out.append('{');
+        String sep = "";
+        for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+            Timer timer = entry.getValue();
+            long count = timer.count();
+            out.append(sep).append(quote(entry.getKey()))
+                .append(":{\"count\":").append(count)
+                .append(",\"failures\":").append(timer.failures())
+                .append(",\"failureRate\":").append(count == 0 ? 0.0 : (double) timer.failures() / count)
+                .append(",\"seconds\":").append(timer.seconds())
+                .append(",\"buckets\":{");
+            long[] histogram = timer.histogram();
+            for (int i = 0; i < BUCKETS.length; i++) {
+                out.append(i == 0 ? "" : ",").append('"').append(BUCKETS[i]).append("\":").append(histogram[i]);
+            }
+            out.append(",\"+Inf\":").append(count).append("}}");
+            sep = ",";
+        }
+        out.append('}');
+    }
+
+    private static String quote(String str) {
+        StringBuilder out = new StringBuilder("\"");
+        for (char c : str.toCharArray()) {
+            switch (c) {
+                case '"' -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                case '\n' -> out.append("\\n");
+                default -> {
+                    if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+                    else out.append(c);
+                }
+            }
+        }
+        return out.append('"').toString();
+    }
+}
@@ -17,6 +17,14 @@ package org.copalis.antsy;
 
 import java.io.File;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.tools.ant.BuildEvent;
 import org.apache.tools.ant.BuildException;
@@ -27,6 +35,13 @@ import org.apache.tools.ant.DemuxOutputStream;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Target;
 import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.Concat;
+import org.apache.tools.ant.taskdefs.Copy;
+import org.apache.tools.ant.taskdefs.Delete;
+import org.apache.tools.ant.taskdefs.Jar;
+import org.apache.tools.ant.taskdefs.Javac;
+import org.apache.tools.ant.taskdefs.Move;
+import org.apache.tools.ant.taskdefs.Zip;
 
 /**
  * A facade around an Ant Project and BuildLogger
@@ -37,6 +52,8 @@ public class AntProject {
 
     private final Project project;
     private final BuildLogger logger;
+    private Executor executor = ForkJoinPool.commonPool();
+    private AntMetrics metrics;
 
     public AntProject() {
         this(new Project(), new DefaultLogger());
@@ -54,6 +71,19 @@ public class AntProject {
         project.addBuildListener(logger);
     }
 
+    /**
+     * Wraps a project that has already been configured
+     */
+    AntProject(Project project, BuildLogger logger, Executor executor) {
+        this.project = project;
+        this.logger = logger;
+        this.executor = executor;
+    }
+
+    BuildLogger logger() {
+        return logger;
+    }
+
     public AntProject setStreams() {
         System.setIn(new DemuxInputStream(project));
         System.setOut(new PrintStream(new DemuxOutputStream(project, false)));
@@ -61,6 +91,136 @@ public class AntProject {
         return this;
     }
 
+    /**
+     * Replaces the standard output and error streams with streams that capture the output of each task
+     * separately, even when tasks run concurrently,
+     * and log it as a single block when the task finishes.
+     * Output written outside of any task goes directly to the original streams.
+     * @return this
+     */
+    public AntProject captureStreams() {
+        TaskOutputCapture capture = new TaskOutputCapture(project, System.out, System.err);
+        project.addBuildListener(capture);
+        System.setOut(capture.out());
+        System.setErr(capture.err());
+        return this;
+    }
+
+    /**
+     * Sets the executor used by the {@code parallel} methods.
+     * The default is the {@link ForkJoinPool#commonPool() common pool};
+     * builds that are mostly I/O bound may benefit from a larger bounded pool, or a virtual thread executor.
+     * @param executor the executor that parallel tasks will run on
+     * @return this
+     */
+    public AntProject executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Gets the executor used by the {@code parallel} methods
+     * @return the executor
+     */
+    public Executor executor() {
+        return executor;
+    }
+
+    /**
+     * Sets the build cache that incremental tasks restore their outputs from
+     * @param cache the build cache, or {@literal null} to disable caching
+     * @return this
+     * @see AntTask#incremental(File...)
+     */
+    public AntProject buildCache(AntBuildCache cache) {
+        project.addReference(AntBuildCache.REFERENCE, cache);
+        return this;
+    }
+
+    /**
+     * Sets the cache that the file sets of the facades reuse the results of earlier scans from.
+     * A project that runs many builds over the same files should keep its cache,
+     * and {@link AntScanCache#close() close} it when the project is discarded.
+     * @param cache the scan cache, or {@literal null} to scan file sets every time they are used
+     * @return this
+     */
+    public AntProject scanCache(AntScanCache cache) {
+        project.addReference(AntScanCache.REFERENCE, cache);
+        return this;
+    }
+
+    /**
+     * Registers an alternative implementation of a task class.
+     * The engine is only used for tasks of exactly that class, not its subclasses.
+     * @param <T> the task type
+     * @param type the task class
+     * @param engine the engine, or {@literal null} to use the task's own implementation
+     * @return this
+     */
+    public synchronized <T extends Task> AntProject engine(Class<T> type, AntEngine<? super T> engine) {
+        Map<Class<?>, AntEngine<?>> engines = project.getReference(AntEngine.REFERENCE);
+        if (engines == null) {
+            engines = new ConcurrentHashMap<>();
+            project.addReference(AntEngine.REFERENCE, engines);
+        }
+        if (engine == null) {
+            engines.remove(type);
+        } else {
+            engines.put(type, engine);
+        }
+        return this;
+    }
+
+    /**
+     * Registers engines that run the {@code copy}, {@code move}, {@code concat} and {@code delete} tasks
+     * with NIO file channels and parallel directory traversal,
+     * when they do not use filters, mappers or other features that the engines do not support
+     * @return this
+     */
+    public AntProject fileEngines() {
+        engine(Copy.class, new FileEngines.CopyEngine());
+        engine(Move.class, new FileEngines.MoveEngine());
+        engine(Concat.class, new FileEngines.ConcatEngine());
+        engine(Delete.class, new FileEngines.DeleteEngine());
+        return this;
+    }
+
+    /**
+     * Registers an engine that runs the {@code javac} task with the compiler of this JVM,
+     * keeping the compiler state between builds and recompiling only the sources that have changed
+     * and the sources that depend on them
+     * @return this
+     */
+    public AntProject javacEngine() {
+        return engine(Javac.class, new JavacEngine());
+    }
+
+    /**
+     * Registers engines that run the {@code zip} and {@code jar} tasks with a writer
+     * that compresses several entries, and several chunks of large files, at once
+     * @param reproducible whether to sort the entries of each file set and give them a fixed time,
+     * so that archives built from the same files are identical
+     * @return this
+     */
+    public AntProject archiveEngines(boolean reproducible) {
+        ArchiveEngine engine = new ArchiveEngine(reproducible);
+        engine(Zip.class, engine);
+        engine(Jar.class, engine);
+        return this;
+    }
+
+    /**
+     * Gets the metrics of this project, enabling their collection on first use
+     * @return the metrics listener registered with this project
+     */
+    public synchronized AntMetrics metrics() {
+        if (metrics == null) {
+            metrics = new AntMetrics();
+            project.addBuildListener(metrics);
+        }
+        return metrics;
+    }
+
     /**
      * Gets the underlying Ant Project
      * @return a {@link org.apache.tools.ant.Project Project}
@@ -78,10 +238,17 @@ public class AntProject {
         final Target current = new Target();
         current.setProject(project);
         current.setName(name);
-        logger.targetStarted(new BuildEvent(current));
+        BuildEvent started = new BuildEvent(current);
+        project.getBuildListeners().forEach(listener -> listener.targetStarted(started));
         return new AntTarget(current) {
             public void finished() {
-                logger.targetFinished(new BuildEvent(current));
+                finished(null);
+            }
+
+            public void finished(Throwable cause) {
+                BuildEvent event = new BuildEvent(current);
+                event.setException(cause);
+                project.getBuildListeners().forEach(listener -> listener.targetFinished(event));
             }
         };
     }
@@ -118,6 +285,56 @@ public class AntProject {
         project.fireBuildFinished(new BuildException(cause));
     }
 
+    /**
+     * Runs the tasks concurrently on this project's executor, and waits until all of them have finished
+     * @param tasks the tasks to run
+     * @return this
+     * @throws BuildException if any of the tasks failed;
+     * failures of the other tasks are added as suppressed exceptions
+     * @see AntTask#runAsync(Executor)
+     */
+    public AntProject parallel(AntTask<?>... tasks) {
+        List<CompletableFuture<?>> futures = new ArrayList<>(tasks.length);
+        for (AntTask<?> task : tasks) {
+            futures.add(task.runAsync(executor, 2)); // the location is the caller of this method
+        }
+        return await(futures);
+    }
+
+    /**
+     * Runs blocks of code concurrently on this project's executor, and waits until all of them have finished.
+     * Each block may run several tasks in sequence.
+     * @param blocks the code to run
+     * @return this
+     * @throws BuildException if any of the blocks failed;
+     * failures of the other blocks are added as suppressed exceptions
+     */
+    public AntProject parallel(Runnable... blocks) {
+        List<CompletableFuture<?>> futures = new ArrayList<>(blocks.length);
+        for (Runnable block : blocks) {
+            futures.add(CompletableFuture.runAsync(block, executor));
+        }
+        return await(futures);
+    }
+
+    private AntProject await(List<CompletableFuture<?>> futures) {
+        BuildException failure = null;
+        for (CompletableFuture<?> future : futures) {
+            try {
+                future.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (failure == null) {
+                    failure = cause instanceof BuildException be ? be : new BuildException(cause);
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+        if (failure != null) throw failure;
+        return this;
+    }
+
     /**
      * Creates a new instance of the specified Ant task facade
      * @param <X> the facade type
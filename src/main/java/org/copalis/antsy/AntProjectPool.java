@@ -0,0 +1,211 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.BuildLogger;
+import org.apache.tools.ant.ComponentHelper;
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.MagicNames;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.PropertyHelper;
+
+/**
+ * A pool of projects that are copies of a prepared template, for services that run many builds.
+ * <p/>
+ * Each project starts with the template's base directory, properties, references, build listeners and executor.
+ * The template's properties and references are frozen when the pool is created and shared by all the projects;
+ * properties set during a build are kept separately and discarded when the project is released,
+ * along with any references and listeners that the build added.
+ * Each project has its own component helper, initialized with the template's definitions,
+ * and its own copy of the template's {@link AntProject#engine engines}, so that definitions and engines
+ * registered during a build do not affect the template or other projects.
+ * Other referenced objects, such as build and scan caches, and the build listeners, are shared,
+ * except for the template's logger: each project logs through its own {@link DefaultLogger}
+ * with the template logger's message output level, so that concurrent builds are timed separately.
+ * Acquiring a project never blocks: when no idle project is available a new one is prepared,
+ * and projects released when the pool is full are discarded.
+ *
+ * <pre>
+ * AntProjectPool pool = new AntProjectPool(template, 16);
+ * pool.build(ant -> ant.task(echo).message("hello").run());
+ * </pre>
+ *
+ * @author gilesjb
+ */
+public class AntProjectPool {
+
+    private record Member(Project project, BuildLogger logger, List<BuildListener> listeners) {}
+
+    private final AntProject template;
+    private final Map<String, Object> properties;
+    private final Map<String, Object> references = new HashMap<>();
+    private final Map<Class<?>, AntEngine<?>> engines;
+    private final ComponentHelper components;
+    private final BlockingQueue<Member> idle;
+    private final Map<Project, Member> members = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a pool
+     * @param template the project to copy; changes made to it after the pool is created are not copied
+     * @param capacity the maximum number of idle projects that are kept
+     */
+    public AntProjectPool(AntProject template, int capacity) {
+        this.template = template;
+        Project source = template.project();
+        this.properties = Map.copyOf(source.getProperties());
+        source.getReferences().forEach((name, value) -> {
+            if (!name.equals(MagicNames.REFID_PROPERTY_HELPER)
+                    && !name.equals(ComponentHelper.COMPONENT_HELPER_REFERENCE)
+                    && !name.equals(AntEngine.REFERENCE)) references.put(name, value);
+        });
+        Map<Class<?>, AntEngine<?>> engines = source.getReference(AntEngine.REFERENCE);
+        this.engines = engines == null ? null : Map.copyOf(engines);
+        this.components = source.getReference(ComponentHelper.COMPONENT_HELPER_REFERENCE);
+        this.idle = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Takes an idle project from the pool, or prepares a new one
+     * @return a project that must be {@link #release(AntProject) released} when its build is finished
+     */
+    public AntProject acquire() {
+        Member member = idle.poll();
+        if (member == null) member = prepare();
+        members.put(member.project(), member);
+        return new AntProject(member.project(), member.logger(), template.executor());
+    }
+
+    /**
+     * Resets a project and returns it to the pool
+     * @param ant a project obtained from {@link #acquire()}
+     */
+    public void release(AntProject ant) {
+        Member member = members.remove(ant.project());
+        if (member == null) throw new IllegalArgumentException("Project does not belong to this pool");
+        reset(member);
+        idle.offer(member);
+    }
+
+    /**
+     * Runs a build on a pooled project
+     * @param build the build
+     */
+    public void build(Consumer<AntProject> build) {
+        AntProject ant = acquire();
+        try {
+            build.accept(ant);
+        } finally {
+            release(ant);
+        }
+    }
+
+    /**
+     * Gets the number of idle projects
+     * @return the number of projects that can be acquired without preparing new ones
+     */
+    public int idle() {
+        return idle.size();
+    }
+
+    private Member prepare() {
+        Project source = template.project(), project = new Project();
+        project.setBaseDir(source.getBaseDir());
+        source.getBuildListeners().forEach(listener -> {
+            if (listener != template.logger()) project.addBuildListener(listener);
+        });
+        BuildLogger logger = new DefaultLogger();
+        logger.setOutputPrintStream(System.out);
+        logger.setErrorPrintStream(System.err);
+        logger.setMessageOutputLevel(template.logger().getMessageOutputLevel());
+        project.addBuildListener(logger);
+        initReferences(project);
+        return new Member(project, logger, project.getBuildListeners());
+    }
+
+    private void reset(Member member) {
+        Project project = member.project();
+        project.getBuildListeners().forEach(listener -> {
+            if (!member.listeners().contains(listener)) project.removeBuildListener(listener);
+        });
+        initReferences(project);
+    }
+
+    /**
+     * Replaces the references of a project with the template's,
+     * and new copies of the component helper and engines that builds may change
+     */
+    private void initReferences(Project project) {
+        Hashtable<String, Object> refs = project.getReferences();
+        refs.clear();
+        refs.putAll(references);
+        if (engines != null) refs.put(AntEngine.REFERENCE, new ConcurrentHashMap<>(engines));
+        ComponentHelper helper = ComponentHelper.getComponentHelper(project);
+        if (components != null) helper.initSubProject(components);
+        refs.put(MagicNames.REFID_PROPERTY_HELPER, new PooledProperties(project, properties));
+    }
+
+    /**
+     * A property helper that reads the template's properties,
+     * and keeps properties set during a build separately
+     */
+    private static class PooledProperties extends PropertyHelper
+            implements PropertyHelper.PropertyEvaluator, PropertyHelper.PropertySetter {
+        private final Map<String, Object> template;
+        private final Map<String, Object> local = new ConcurrentHashMap<>();
+
+        PooledProperties(Project project, Map<String, Object> template) {
+            this.template = template;
+            setProject(project);
+            add(this);
+        }
+
+        @Override public Object evaluate(String property, PropertyHelper helper) {
+            Object value = getUserProperty(property); // user properties take precedence, as in Ant
+            if (value == null) value = local.get(property);
+            return value != null ? value : template.get(property);
+        }
+
+        @Override public boolean setNew(String property, Object value, PropertyHelper helper) {
+            if (template.containsKey(property) || local.putIfAbsent(property, value) != null) {
+                getProject().log("Override ignored for property \"" + property + "\"", Project.MSG_VERBOSE);
+            }
+            return true;
+        }
+
+        @Override public boolean set(String property, Object value, PropertyHelper helper) {
+            if (getUserProperty(property) != null) return false; // user properties cannot be changed
+            local.put(property, value);
+            return true;
+        }
+
+        @Override public Hashtable<String, Object> getProperties() {
+            Hashtable<String, Object> all = new Hashtable<>(template);
+            all.putAll(local);
+            all.putAll(super.getProperties());
+            return all;
+        }
+    }
+}
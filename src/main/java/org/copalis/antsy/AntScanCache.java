@@ -0,0 +1,233 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.tools.ant.DirectoryScanner;
+
+/**
+ * A cache of the results of scanning file sets, shared by the tasks of a project.
+ * <p/>
+ * Results are keyed by the base directory and the patterns of the scan,
+ * so file sets that are declared separately for different tasks share the same entry.
+ * Only file sets created by the facades are cached, and only when they have no selectors
+ * and were scanned by a {@link ParallelDirectoryScanner}.
+ * <p/>
+ * Every directory that a scan listed is registered with a {@link WatchService},
+ * and the events it has reported are processed each time the cache is consulted,
+ * invalidating the entries of directories in which names have been created or deleted.
+ * Because a watch service reports events asynchronously, the modification times of the directories
+ * are also compared before an entry is used, so that a file written by the previous task is never missed.
+ * Least recently used entries are evicted while there are more than the maximum number of entries
+ * or they hold more than the maximum number of names.
+ *
+ * @author gilesjb
+ * @see AntProject#scanCache(AntScanCache)
+ */
+public class AntScanCache implements Closeable {
+
+    static final String REFERENCE = "antsy.scans";
+
+    /**
+     * The settings that determine the results of a scan
+     */
+    record Key(Path dir, List<String> includes, List<String> excludes,
+            boolean caseSensitive, boolean followSymlinks) {}
+
+    private record Entry(DirectoryScanner scanner, List<ParallelDirectoryScanner.Directory> listed, int names) {
+
+        boolean isCurrent() {
+            try {
+                for (ParallelDirectoryScanner.Directory dir : listed) {
+                    if (!Files.getLastModifiedTime(dir.path(), LinkOption.NOFOLLOW_LINKS).equals(dir.modified())) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxNames;
+
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Path, WatchKey> watches = new HashMap<>();
+    private final Map<Path, Set<Key>> watchers = new HashMap<>();
+    private WatchService watcher;
+    private long names;
+
+    /**
+     * Creates a scan cache
+     * @param maxEntries the maximum number of scan results to keep
+     * @param maxNames the maximum total number of included file and directory names to keep
+     */
+    public AntScanCache(int maxEntries, long maxNames) {
+        this.maxEntries = maxEntries;
+        this.maxNames = maxNames;
+    }
+
+    /**
+     * Creates a scan cache that keeps up to 256 results and a million names
+     */
+    public AntScanCache() {
+        this(256, 1_000_000);
+    }
+
+    /**
+     * Gets the results of an earlier scan
+     * @param key the settings of the scan
+     * @return a scanner holding the results,
+     * or {@literal null} if there are none or files have changed since the scan
+     */
+    synchronized DirectoryScanner get(Key key) {
+        drain();
+        Entry entry = entries.get(key);
+        if (entry == null) return null;
+        if (!entry.isCurrent()) {
+            remove(key);
+            return null;
+        }
+        return entry.scanner();
+    }
+
+    /**
+     * Stores the results of a scan, if the directories it listed can be watched
+     * @param key the settings of the scan
+     * @param scanner the scanner, which must have completed a parallel scan
+     */
+    synchronized void put(Key key, ParallelDirectoryScanner scanner) {
+        List<ParallelDirectoryScanner.Directory> listed = scanner.listed();
+        int size = scanner.getIncludedFilesCount() + scanner.getIncludedDirsCount();
+        if (listed == null || size > maxNames) return;
+
+        remove(key);
+        List<Path> registered = new ArrayList<>(listed.size());
+        try {
+            if (watcher == null) {
+                watcher = listed.get(0).path().getFileSystem().newWatchService();
+            }
+            for (ParallelDirectoryScanner.Directory dir : listed) {
+                if (!watches.containsKey(dir.path())) {
+                    watches.put(dir.path(), dir.path().register(watcher,
+                            StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE));
+                }
+                watchers.computeIfAbsent(dir.path(), p -> new HashSet<>()).add(key);
+                registered.add(dir.path());
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            // the watch limit may have been reached; the scan is not cached
+            registered.forEach(path -> unwatch(path, key));
+            return;
+        }
+
+        entries.put(key, new Entry(scanner, listed, size));
+        names += size;
+        for (Iterator<Map.Entry<Key, Entry>> lru = entries.entrySet().iterator();
+                lru.hasNext() && (entries.size() > maxEntries || names > maxNames);) {
+            Map.Entry<Key, Entry> eldest = lru.next();
+            lru.remove();
+            release(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    /**
+     * Discards all the entries
+     */
+    public synchronized void clear() {
+        entries.clear();
+        names = 0;
+        watches.values().forEach(WatchKey::cancel);
+        watches.clear();
+        watchers.clear();
+    }
+
+    /**
+     * Discards all the entries and closes the watch service
+     */
+    @Override public synchronized void close() throws IOException {
+        clear();
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+    }
+
+    /**
+     * Invalidates the entries of directories that the watch service has reported changes in
+     */
+    private void drain() {
+        if (watcher == null) return;
+        for (WatchKey watch; (watch = watcher.poll()) != null;) {
+            Path dir = (Path) watch.watchable();
+            boolean overflow = false;
+            for (WatchEvent<?> event : watch.pollEvents()) {
+                overflow |= event.kind() == StandardWatchEventKinds.OVERFLOW;
+            }
+            if (overflow) {
+                clear();
+                return;
+            }
+            Set<Key> keys = watchers.get(dir);
+            if (keys != null) {
+                new ArrayList<>(keys).forEach(this::remove);
+            }
+            if (!watch.reset()) {
+                watches.remove(dir, watch);
+            }
+        }
+    }
+
+    private void remove(Key key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) release(key, entry);
+    }
+
+    private void release(Key key, Entry entry) {
+        names -= entry.names();
+        for (ParallelDirectoryScanner.Directory dir : entry.listed()) {
+            unwatch(dir.path(), key);
+        }
+    }
+
+    private void unwatch(Path dir, Key key) {
+        Set<Key> keys = watchers.get(dir);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            watchers.remove(dir);
+            WatchKey watch = watches.remove(dir);
+            if (watch != null) watch.cancel();
+        }
+    }
+}
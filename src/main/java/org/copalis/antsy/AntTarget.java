@@ -33,4 +33,12 @@ public abstract class AntTarget extends AntRef<Target> {
      * Signals that execution of the target has finished
      */
     public abstract void finished();
+
+    /**
+     * Signals that execution of the target has failed
+     * @param cause the exception that caused the target to fail
+     */
+    public void finished(Throwable cause) {
+        finished();
+    }
 }
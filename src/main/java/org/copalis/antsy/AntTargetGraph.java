@@ -0,0 +1,161 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.tools.ant.BuildException;
+
+/**
+ * A set of targets with dependencies between them, equivalent to the {@code depends} attribute of a build.xml target.
+ * <p/>
+ * Running a target first runs each of its dependencies once, in dependency order.
+ * With a width greater than one, targets whose dependencies have all completed run in parallel.
+ *
+ * <pre>
+ * new AntTargetGraph(ant).width(4)
+ *     .target("init", () -> ant.task(mkdir).dir(classes).run())
+ *     .target("compile", () -> ..., "init")
+ *     .target("docs", () -> ..., "init")
+ *     .target("build", () -> {}, "compile", "docs")
+ *     .run("build");
+ * </pre>
+ *
+ * @author gilesjb
+ */
+public class AntTargetGraph {
+
+    private record Node(String name, Runnable body, List<String> depends) {}
+
+    private final AntProject ant;
+    private final Map<String, Node> targets = new LinkedHashMap<>();
+    private int width = 1;
+
+    public AntTargetGraph(AntProject ant) {
+        this.ant = ant;
+    }
+
+    /**
+     * Sets the maximum number of targets that may run at the same time.
+     * The default is 1, which runs targets sequentially on the calling thread
+     * @param width the maximum number of concurrent targets
+     * @return this
+     */
+    public AntTargetGraph width(int width) {
+        if (width < 1) throw new IllegalArgumentException("width must be at least 1");
+        this.width = width;
+        return this;
+    }
+
+    /**
+     * Declares a target
+     * @param name the target name
+     * @param body the code that executes the target
+     * @param dependsOn the names of targets that must complete before this one runs
+     * @return this
+     */
+    public AntTargetGraph target(String name, Runnable body, String... dependsOn) {
+        if (targets.containsKey(name)) throw new BuildException("Duplicate target '" + name + "'");
+        targets.put(name, new Node(name, body, Arrays.asList(dependsOn)));
+        return this;
+    }
+
+    /**
+     * Runs the named targets and everything they depend on
+     * @param names the targets to run
+     * @throws BuildException if a dependency is missing or circular, or if a target failed.
+     * Targets that depend on a failed target are not run
+     */
+    public void run(String... names) {
+        List<Node> order = sort(names);
+        if (width == 1) {
+            for (Node node : order) {
+                execute(node);
+            }
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(width);
+        try {
+            Map<String, CompletableFuture<Void>> futures = new HashMap<>();
+            for (Node node : order) {
+                CompletableFuture<?>[] deps = node.depends().stream()
+                        .map(futures::get)
+                        .toArray(CompletableFuture<?>[]::new);
+                futures.put(node.name(), CompletableFuture.allOf(deps).thenRunAsync(() -> execute(node), pool));
+            }
+            CompletableFuture.allOf(futures.values().toArray(CompletableFuture<?>[]::new)).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof BuildException be ? be : new BuildException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void execute(Node node) {
+        AntTarget target = ant.startTarget(node.name());
+        try {
+            node.body().run();
+        } catch (RuntimeException | Error e) {
+            target.finished(e);
+            throw e;
+        }
+        target.finished();
+    }
+
+    /**
+     * Sorts the targets into dependency order
+     * @param names the targets that are required
+     * @return the required targets and their dependencies, each after its dependencies
+     */
+    private List<Node> sort(String... names) {
+        Set<Node> sorted = new LinkedHashSet<>();
+        for (String name : names) {
+            visit(name, new ArrayList<>(), sorted);
+        }
+        return new ArrayList<>(sorted);
+    }
+
+    private void visit(String name, List<String> path, Set<Node> sorted) {
+        Node node = targets.get(name);
+        if (node == null) {
+            throw new BuildException("Target '" + name + "' does not exist"
+                    + (path.isEmpty() ? "" : ", it is used from target '" + path.get(path.size() - 1) + "'"));
+        }
+        if (sorted.contains(node)) return;
+        if (path.contains(name)) {
+            throw new BuildException("Circular dependency: "
+                    + String.join(" <- ", path.subList(path.indexOf(name), path.size())) + " <- " + name);
+        }
+        path.add(name);
+        for (String dep : node.depends()) {
+            visit(dep, path, sorted);
+        }
+        path.remove(path.size() - 1);
+        sorted.add(node);
+    }
+}
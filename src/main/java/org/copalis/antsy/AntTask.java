@@ -15,6 +15,19 @@
  */
 package org.copalis.antsy;
 
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildListener;
 import org.apache.tools.ant.Location;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
@@ -25,21 +38,68 @@ import org.apache.tools.ant.Task;
  */
 public abstract class AntTask<T extends Task> extends AntRef<T> {
 
+    /**
+     * Facade constructors, resolved once per facade class and bound to the default task name
+     */
+    private static final ClassValue<MethodHandle> FACADES = new ClassValue<MethodHandle>() {
+        protected MethodHandle computeValue(Class<?> type) {
+            try {
+                MethodHandle ctor = MethodHandles.publicLookup().findConstructor(type,
+                        MethodType.methodType(void.class, String.class, Project.class));
+                return MethodHandles.insertArguments(ctor, 0, type.getSimpleName().toLowerCase())
+                        .asType(MethodType.methodType(AntTask.class, Project.class));
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    /**
+     * No-argument constructors of the wrapped Ant tasks
+     */
+    private static final ClassValue<MethodHandle> TASKS = new ClassValue<MethodHandle>() {
+        protected MethodHandle computeValue(Class<?> type) {
+            try {
+                return MethodHandles.publicLookup().findConstructor(type, MethodType.methodType(void.class))
+                        .asType(MethodType.methodType(Task.class));
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    private static final StackWalker WALKER = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+
+    /**
+     * Inferred locations, cached per calling class and keyed by method, method descriptor and bytecode index
+     */
+    private static final ClassValue<Map<CallSite, Location>> LOCATIONS = new ClassValue<Map<CallSite, Location>>() {
+        protected Map<CallSite, Location> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private record CallSite(String method, String descriptor, int bci) {}
+
     private boolean inferLocation = false;
+    private File[] outputs = null;
 
     /**
-     * Creates an instance of an AntTask class
+     * Creates an instance of an AntTask class.
+     * The constructor of each AntTask class is looked up once and cached.
      * @param <X> the AntTask type
      * @param <Y> the enclosed Ant Task type
      * @param type the type of AntTask to create
      * @param project the Ant project that it should be executed in
      * @return a new instance of X
      */
+    @SuppressWarnings("unchecked")
     public static final <X extends AntTask<Y>, Y extends Task> X create(Class<X> type, Project project) {
         try {
-            return type.getConstructor(String.class, Project.class)
-                    .newInstance(type.getSimpleName().toLowerCase(), project);
-        } catch (Exception e) {
+            return (X) FACADES.get(type).invokeExact(project);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
             throw new RuntimeException(e);
         }
     }
@@ -54,12 +114,13 @@ public abstract class AntTask<T extends Task> extends AntRef<T> {
         this(name, createInner(type), project);
     }
 
+    @SuppressWarnings("unchecked")
     private static final <X extends Task> X createInner(Class<X> type) {
         try {
-            return type.getDeclaredConstructor().newInstance();
-        } catch (RuntimeException e) {
+            return (X) TASKS.get(type).invokeExact();
+        } catch (RuntimeException | Error e) {
             throw e;
-        } catch (Exception e) {
+        } catch (Throwable e) {
             throw new RuntimeException(e);
         }
     }
@@ -74,6 +135,23 @@ public abstract class AntTask<T extends Task> extends AntRef<T> {
         return this;
     }
 
+    /**
+     * Enables incremental execution.
+     * The task is skipped if its attributes, input files and output files are unchanged since it last
+     * completed successfully.
+     * Attributes and inputs are found by examining the configured Ant task;
+     * the files and directories that the task writes must be declared.
+     * Task fingerprints and file hashes are kept in an index under the project base directory.
+     * If the project has a {@link AntProject#buildCache(AntBuildCache) build cache},
+     * outputs are restored from it instead of executing the task when possible.
+     * @param outputs the files and directories written by the task
+     * @return this
+     */
+    public AntTask<T> incremental(File... outputs) {
+        this.outputs = outputs.clone();
+        return this;
+    }
+
     /**
      * Sets the location of the task that will be reported
      * @param fileName
@@ -91,15 +169,146 @@ public abstract class AntTask<T extends Task> extends AntRef<T> {
      * Should only be called once on any specific task object.
      * <p/>
      * If location inference is enabled and no location has been set,
-     * the stack trace is examined and the invoking method's source file and line number is used as the task location
+     * the invoking method's source file and line number is used as the task location.
+     * Only the invoking stack frame is walked, and the location is cached for each call site.
      *
      * @see org.apache.tools.ant.Task#perform()
      */
     public final void run() {
+        run(2);
+    }
+
+    /**
+     * Executes the task
+     * @param depth the number of frames between this method and the call site to use as the inferred location,
+     * counting this method's caller
+     */
+    final void run(int depth) {
+        if (inferLocation && is().getLocation() == Location.UNKNOWN_LOCATION) {
+            is().setLocation(invokingLocation(depth));
+        }
+        execute();
+    }
+
+    /**
+     * Executes the task asynchronously by calling {@link org.apache.tools.ant.Task#perform() perform()}
+     * on the underlying Ant Task in a thread provided by the executor.
+     * The executing thread is registered with the project as running this task while it executes,
+     * so that output written to the project's demultiplexed streams is attributed to it.
+     * Should only be called once on any specific task object.
+     * <p/>
+     * Location inference behaves as in {@link #run()}.
+     *
+     * @param executor the executor that should run the task
+     * @return a future that completes when the task has finished,
+     * or completes exceptionally with the task's failure
+     * @see AntProject#parallel(AntTask...)
+     */
+    public final CompletableFuture<Void> runAsync(Executor executor) {
+        return runAsync(executor, 2);
+    }
+
+    /**
+     * Executes the task asynchronously
+     * @param executor the executor that should run the task
+     * @param depth the number of frames between this method and the call site to use as the inferred location,
+     * counting this method's caller
+     */
+    final CompletableFuture<Void> runAsync(Executor executor, int depth) {
         if (inferLocation && is().getLocation() == Location.UNKNOWN_LOCATION) {
-            StackTraceElement elem = new Throwable().getStackTrace()[1]; // invoking method
-            setLocation(elem.getFileName(), elem.getLineNumber(), 0);
+            is().setLocation(invokingLocation(depth));
+        }
+        return CompletableFuture.runAsync(() -> {
+            Project project = is().getProject();
+            project.registerThreadTask(Thread.currentThread(), is());
+            try {
+                execute();
+            } finally {
+                project.registerThreadTask(Thread.currentThread(), null);
+            }
+        }, executor);
+    }
+
+    private void execute() {
+        if (outputs == null) {
+            perform();
+            return;
+        }
+
+        Project project = is().getProject();
+        FileStateIndex index = FileStateIndex.of(project);
+        TaskFingerprint fingerprint = new TaskFingerprint(is(), outputs);
+        FileStateIndex.Entry last = index.get(fingerprint.key());
+        if (last != null && last.hash() == fingerprint.state(index)) {
+            is().log("Skipped because inputs and outputs are unchanged", Project.MSG_VERBOSE);
+            return;
+        }
+
+        AntBuildCache cache = project.getReference(AntBuildCache.REFERENCE);
+        String inputs = cache == null ? null : fingerprint.inputs(index);
+        if (cache != null && cache.restore(inputs, fingerprint.outputs())) {
+            is().log("Restored outputs from build cache", Project.MSG_VERBOSE);
+        } else {
+            perform();
+            if (cache != null) cache.store(inputs, fingerprint.outputs(), project);
         }
-        is().perform();
+        index.put(fingerprint.key(), new FileStateIndex.Entry(0, 0, fingerprint.state(index)));
+        index.save();
+    }
+
+    /**
+     * Performs the task with the engine registered for its class, if it supports the task's configuration,
+     * or with the task's own implementation
+     */
+    private void perform() {
+        Task task = is();
+        Map<Class<?>, AntEngine<?>> engines = task.getProject().getReference(AntEngine.REFERENCE);
+        @SuppressWarnings("unchecked")
+        AntEngine<Task> engine = engines == null ? null : (AntEngine<Task>) engines.get(task.getClass());
+        if (engine == null || !engine.supports(task)) {
+            task.perform();
+            return;
+        }
+
+        // the same steps as Task.perform(), whose Project.fireTask* methods are not accessible
+        Project project = task.getProject();
+        project.registerThreadTask(Thread.currentThread(), task);
+        List<BuildListener> listeners = project.getBuildListeners();
+        BuildEvent started = new BuildEvent(task);
+        listeners.forEach(listener -> listener.taskStarted(started));
+        BuildEvent finished = new BuildEvent(task);
+        try {
+            engine.execute(task);
+        } catch (BuildException e) {
+            if (e.getLocation() == Location.UNKNOWN_LOCATION) {
+                e.setLocation(task.getLocation());
+            }
+            finished.setException(e);
+            throw e;
+        } catch (RuntimeException e) {
+            finished.setException(e);
+            throw new BuildException(e, task.getLocation());
+        } catch (Error e) {
+            finished.setException(e);
+            throw e;
+        } finally {
+            project.registerThreadTask(Thread.currentThread(), null);
+            System.out.flush();
+            System.err.flush();
+            listeners.forEach(listener -> listener.taskFinished(finished));
+        }
+    }
+
+    /**
+     * Finds the location of the method that called {@link #run()} or {@link #runAsync(Executor)}
+     * @param depth the number of Antsy frames to skip above this method
+     * @return the source location of the call site
+     */
+    private static Location invokingLocation(int depth) {
+        return WALKER.walk(frames -> frames.skip(1 + depth).findFirst()) // skip this method and the Antsy frames
+                .map(frame -> LOCATIONS.get(frame.getDeclaringClass()).computeIfAbsent(
+                        new CallSite(frame.getMethodName(), frame.getDescriptor(), frame.getByteCodeIndex()),
+                        site -> new Location(frame.getFileName(), frame.getLineNumber(), 0)))
+                .orElse(Location.UNKNOWN_LOCATION);
     }
 }
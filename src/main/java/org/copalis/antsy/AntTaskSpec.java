@@ -0,0 +1,156 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * An immutable specification of a task, which can create and run any number of tasks configured the same way.
+ * <p/>
+ * Facades and the Ant tasks they wrap can only be run once, so a spec holds the facade class
+ * and the steps that configure it instead, and each time it is run a new facade is created
+ * with the facade's cached constructor and the steps are applied to it.
+ * Specs can be shared between threads and run concurrently,
+ * provided that their steps do not modify shared state.
+ * They are serializable if the values that their steps capture are, so they can be sent to
+ * {@link AntWorkerPool worker JVMs} that have the same class path.
+ * <pre>
+ * AntTaskSpec&lt;Copy, ?> copySources = AntTaskSpec.of(copy, c -> c.withFileset().dir(src).end());
+ * for (File module : modules) {
+ *     copySources.with(c -> c.todir(new File(module, "src"))).run(ant);
+ * }
+ * </pre>
+ *
+ * @param <X> the facade type
+ * @param <Y> the Ant task type
+ * @author gilesjb
+ */
+public final class AntTaskSpec<X extends AntTask<Y>, Y extends Task> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * A step that configures a facade.
+     * Lambda expressions that implement this interface are serializable.
+     * @param <X> the facade type
+     */
+    @FunctionalInterface
+    public interface Step<X> extends Consumer<X>, Serializable {}
+
+    private final Class<X> type;
+    private final List<Step<? super X>> steps;
+
+    private AntTaskSpec(Class<X> type, List<Step<? super X>> steps) {
+        this.type = type;
+        this.steps = steps;
+    }
+
+    /**
+     * Creates a spec
+     * @param <X> the facade type
+     * @param <Y> the Ant task type
+     * @param type the facade class
+     * @param configuration sets the attributes and elements of each new facade
+     * @return the spec
+     */
+    public static <X extends AntTask<Y>, Y extends Task> AntTaskSpec<X, Y> of(Class<X> type,
+            Step<? super X> configuration) {
+        return new AntTaskSpec<>(type, List.of(configuration));
+    }
+
+    /**
+     * Creates a spec of a task with no configuration
+     * @param <X> the facade type
+     * @param <Y> the Ant task type
+     * @param type the facade class
+     * @return the spec
+     */
+    public static <X extends AntTask<Y>, Y extends Task> AntTaskSpec<X, Y> of(Class<X> type) {
+        return new AntTaskSpec<>(type, List.of());
+    }
+
+    /**
+     * Creates a spec with further configuration, which is applied after the configuration of this spec
+     * @param configuration sets more attributes and elements of each new facade
+     * @return a new spec; this spec is unchanged
+     */
+    public AntTaskSpec<X, Y> with(Step<? super X> configuration) {
+        List<Step<? super X>> more = new ArrayList<>(steps.size() + 1);
+        more.addAll(steps);
+        more.add(configuration);
+        return new AntTaskSpec<>(type, List.copyOf(more));
+    }
+
+    /**
+     * Gets the facade class of this spec
+     * @return the class
+     */
+    public Class<X> type() {
+        return type;
+    }
+
+    /**
+     * Creates a new configured facade
+     * @param project the Ant project that the task should be executed in
+     * @return a facade that has not been run
+     */
+    public X create(Project project) {
+        X task = AntTask.create(type, project);
+        for (Step<? super X> step : steps) {
+            step.accept(task);
+        }
+        return task;
+    }
+
+    /**
+     * Creates a new configured facade
+     * @param project the project that the task should be executed in
+     * @return a facade that has not been run
+     */
+    public X create(AntProject project) {
+        return create(project.project());
+    }
+
+    /**
+     * Creates and runs a new task
+     * @param project the project to execute the task in
+     * @see AntTask#run()
+     */
+    public void run(AntProject project) {
+        create(project.project()).run(2); // the location is the caller of this method
+    }
+
+    /**
+     * Creates a new task and runs it on the project's {@link AntProject#executor() executor}
+     * @param project the project to execute the task in
+     * @return a future that completes when the task has finished
+     * @see AntTask#runAsync(java.util.concurrent.Executor)
+     */
+    public CompletableFuture<Void> runAsync(AntProject project) {
+        return create(project.project()).runAsync(project.executor(), 2);
+    }
+
+    @Override public String toString() {
+        return "AntTaskSpec[" + type.getName() + ", " + steps.size() + " steps]";
+    }
+}
@@ -0,0 +1,664 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectComponent;
+import org.apache.tools.ant.types.EnumeratedAttribute;
+import org.apache.tools.ant.types.Reference;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Translates an Ant build file into a Java program that runs the same tasks through the facades,
+ * so that builds no longer parse XML or configure tasks by reflection each time they run.
+ * <p/>
+ * Each target becomes a method, and the targets are declared in an {@link AntTargetGraph}
+ * with the dependencies of their {@code depends} attributes and the conditions of their {@code if} and
+ * {@code unless} attributes. Tasks and types outside targets run first, as they do in Ant.
+ * Each element is matched with a facade of the catalog by looking up its Ant class in Ant's default
+ * definitions, and attributes and nested elements are matched with the facade methods.
+ * Property references are replaced when the statement runs, as Ant replaces them when it configures a task,
+ * and files are resolved against the project base directory.
+ * Elements and attributes that have no facade method, such as nested elements that Ant adds by type
+ * rather than by name, are written as comments and reported, to be translated by hand.
+ * The program runs the targets named by its arguments, or the default target,
+ * and accepts {@code -Dname=value} arguments, and it expects to be run from the directory of the build file.
+ *
+ * <pre>
+ * java org.copalis.antsy.AntTranslator -catalog org.copalis.antsy.Tasks -class com.example.Build
+ *     -d src/build/java build.xml
+ * </pre>
+ *
+ * @author gilesjb
+ */
+public class AntTranslator {
+
+    public static final String OPT_CLASS = "-class";
+
+    private static final String ANT_PACKAGE = "org.apache.tools.ant";
+    private static final Set<String> RESERVED = Set.of("abstract", "assert", "boolean", "break", "byte", "case",
+            "catch", "char", "class", "const", "continue", "default", "do", "double", "else", "enum", "extends",
+            "final", "finally", "float", "for", "goto", "if", "implements", "import", "instanceof", "int",
+            "interface", "long", "native", "new", "package", "private", "protected", "public", "return", "short",
+            "static", "strictfp", "super", "switch", "synchronized", "this", "throw", "throws", "transient", "try",
+            "void", "volatile", "while", "true", "false", "null", "var", "record", "yield",
+            "init", "targets", "main", "p", "file", "url", "attribute", "skip", "toString", "hashCode", "equals");
+
+    /**
+     * Preference of setter parameter types when a facade has several setters for an attribute,
+     * following Ant, which only uses a String setter if there is no other
+     */
+    private static final List<Class<?>> PREFERENCE = List.of(File.class, org.apache.tools.ant.types.Path.class,
+            boolean.class, int.class, long.class, double.class, Reference.class, URL.class);
+
+    public static void main(String... args) throws Exception {
+        String base = null, catalog = null, className = null, buildFile = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case AntDoclet.OPT_DESTINATION_DIR -> base = args[++i];
+                case AntDoclet.OPT_CATALOG_CLASS -> catalog = args[++i];
+                case OPT_CLASS -> className = args[++i];
+                default -> buildFile = args[i];
+            }
+        }
+        if (base == null || catalog == null || className == null || buildFile == null) {
+            System.err.println("usage: AntTranslator -catalog <class> -class <class> -d <dir> <build.xml>");
+            System.exit(2);
+        }
+
+        AntTranslator translator = new AntTranslator(Class.forName(catalog));
+        String source = translator.translate(new File(buildFile), className);
+        Path out = Path.of(base, className.replace('.', File.separatorChar) + ".java");
+        Files.createDirectories(out.getParent());
+        Files.writeString(out, source);
+        for (String warning : translator.warnings()) {
+            System.err.println(buildFile + ": " + warning);
+        }
+        System.out.println("Wrote " + out);
+    }
+
+    private final Class<?> catalog;
+    private final Map<String, String> fields = new HashMap<>();
+    private final Map<String, Class<?>> facades = new HashMap<>();
+    private final String facadePackage;
+    private final Properties taskClasses, typeClasses;
+    private final List<String> warnings = new ArrayList<>();
+
+    private StringBuilder out;
+    private String context;
+
+    /**
+     * Creates a translator
+     * @param catalog the catalog interface of the generated facades, whose fields name the task facades
+     */
+    public AntTranslator(Class<?> catalog) throws IOException {
+        this.catalog = catalog;
+        this.facadePackage = catalog.getPackageName();
+        for (Field field : catalog.getFields()) {
+            if (field.getType() != Class.class || !Modifier.isStatic(field.getModifiers())) continue;
+            try {
+                Class<?> facade = (Class<?>) field.get(null);
+                if (facade.getGenericSuperclass() instanceof ParameterizedType type
+                        && type.getActualTypeArguments()[0] instanceof Class<?> task) {
+                    fields.put(task.getName(), field.getName());
+                    facades.put(task.getName(), facade);
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        taskClasses = definitions("/org/apache/tools/ant/taskdefs/defaults.properties");
+        typeClasses = definitions("/org/apache/tools/ant/types/defaults.properties");
+    }
+
+    private static Properties definitions(String resource) throws IOException {
+        Properties props = new Properties();
+        try (InputStream in = Project.class.getResourceAsStream(resource)) {
+            if (in != null) props.load(in);
+        }
+        return props;
+    }
+
+    /**
+     * Gets the elements and attributes that could not be translated by the last translation
+     * @return descriptions of the untranslated parts of the build file
+     */
+    public List<String> warnings() {
+        return warnings;
+    }
+
+    /**
+     * Translates a build file
+     * @param buildFile the build file
+     * @param className the qualified name of the class to generate
+     * @return the Java source of the class
+     */
+    public String translate(File buildFile, String className) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        Document doc = factory.newDocumentBuilder().parse(buildFile);
+        return translate(doc.getDocumentElement(), buildFile.getName(), className);
+    }
+
+    private String translate(Element project, String fileName, String className) {
+        warnings.clear();
+        out = new StringBuilder();
+        int dot = className.lastIndexOf('.');
+        String simpleName = className.substring(dot + 1);
+
+        Map<String, Element> targets = new LinkedHashMap<>();
+        Map<String, String> methods = new HashMap<>();
+        for (Element child : children(project)) {
+            if (child.getTagName().equals("target")) {
+                String name = child.getAttribute("name");
+                targets.put(name, child);
+                methods.put(name, methodName(name, methods.values()));
+            }
+        }
+
+        line(0, "/*");
+        line(0, " * Generated by " + AntTranslator.class.getSimpleName() + " from " + comment(fileName));
+        line(0, " */");
+        if (dot > 0) {
+            line(0, "package " + className.substring(0, dot) + ";");
+            line(0, "");
+        }
+        for (String type : List.of("java.io.File", "java.net.MalformedURLException", "java.net.URL",
+                "java.util.ArrayList", "java.util.List", "")) {
+            line(0, type.isEmpty() ? "" : "import " + type + ";");
+        }
+        for (String type : List.of(Project.class.getName(), org.apache.tools.ant.PropertyHelper.class.getName(),
+                org.apache.tools.ant.BuildException.class.getName(), ProjectComponent.class.getName(),
+                EnumeratedAttribute.class.getName(), AntProject.class.getName(), AntRef.class.getName(),
+                AntTargetGraph.class.getName(), catalog.getName())) {
+            line(0, "import " + type + ";");
+        }
+        line(0, "");
+        line(0, "/**");
+        line(0, " * The " + (project.hasAttribute("name") ? comment(project.getAttribute("name")) + " " : "")
+                + "build, translated from " + comment(fileName));
+        line(0, " */");
+        line(0, "public class " + simpleName + " implements " + catalog.getSimpleName() + " {");
+        line(0, "");
+        line(1, "private final AntProject ant;");
+        line(1, "private final Project project;");
+        line(0, "");
+        line(1, "public " + simpleName + "(AntProject ant) {");
+        line(2, "this.ant = ant;");
+        line(2, "this.project = ant.project();");
+        line(1, "}");
+        line(0, "");
+
+        line(1, "/**");
+        line(1, " * Sets up the project, and runs the tasks that are outside targets");
+        line(1, " */");
+        line(1, "public void init() {");
+        if (project.hasAttribute("name")) line(2, "project.setName(" + literal(project.getAttribute("name")) + ");");
+        line(2, "project.setBasedir(" + literal(project.hasAttribute("basedir")
+                ? project.getAttribute("basedir") : ".") + ");");
+        line(2, "project.initProperties();");
+        context = "project";
+        for (Node node = project.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element e && e.getTagName().equals("target")) continue;
+            statement(node, 2);
+        }
+        line(1, "}");
+        line(0, "");
+
+        line(1, "/**");
+        line(1, " * Declares the targets");
+        line(1, " * @return a target graph that runs the targets sequentially");
+        line(1, " */");
+        line(1, "public AntTargetGraph targets() {");
+        line(2, "return new AntTargetGraph(ant)");
+        targets.forEach((name, target) -> {
+            StringBuilder declaration = new StringBuilder(".target(" + literal(name) + ", this::" + methods.get(name));
+            for (String dependency : target.getAttribute("depends").split(",")) {
+                if (!dependency.isBlank()) declaration.append(", ").append(literal(dependency.trim()));
+            }
+            line(4, declaration + ")");
+        });
+        out.setLength(out.length() - 1);
+        out.append(";\n");
+        line(1, "}");
+
+        targets.forEach((name, target) -> {
+            context = "target " + name;
+            line(0, "");
+            String description = target.getAttribute("description");
+            if (!description.isEmpty()) {
+                line(1, "/**");
+                line(1, " * " + comment(description));
+                line(1, " */");
+            }
+            line(1, "private void " + methods.get(name) + "() {");
+            if (target.hasAttribute("if") || target.hasAttribute("unless")) {
+                line(2, "if (skip(" + literal(target.hasAttribute("if") ? target.getAttribute("if") : null) + ", "
+                        + literal(target.hasAttribute("unless") ? target.getAttribute("unless") : null)
+                        + ")) return;");
+            }
+            for (Node node = target.getFirstChild(); node != null; node = node.getNextSibling()) {
+                statement(node, 2);
+            }
+            line(1, "}");
+        });
+
+        helpers();
+        line(0, "");
+        line(1, "public static void main(String... args) {");
+        line(2, "AntProject ant = new AntProject();");
+        line(2, "List<String> targets = new ArrayList<>();");
+        line(2, "for (String arg : args) {");
+        line(3, "if (arg.startsWith(\"-D\")) {");
+        line(4, "int eq = arg.indexOf('=');");
+        line(4, "ant.project().setUserProperty(eq < 0 ? arg.substring(2) : arg.substring(2, eq),");
+        line(6, "eq < 0 ? \"\" : arg.substring(eq + 1));");
+        line(3, "} else {");
+        line(4, "targets.add(arg);");
+        line(3, "}");
+        line(2, "}");
+        if (project.hasAttribute("default")) {
+            line(2, "if (targets.isEmpty()) targets.add(" + literal(project.getAttribute("default")) + ");");
+        }
+        line(0, "");
+        line(2, simpleName + " build = new " + simpleName + "(ant);");
+        line(2, "ant.startBuild();");
+        line(2, "try {");
+        line(3, "build.init();");
+        line(3, "build.targets().run(targets.toArray(new String[0]));");
+        line(2, "} catch (RuntimeException e) {");
+        line(3, "ant.buildFinished(e);");
+        line(3, "System.exit(1);");
+        line(2, "}");
+        line(2, "ant.buildFinished();");
+        line(1, "}");
+        line(0, "}");
+        return out.toString();
+    }
+
+    private void helpers() {
+        String[] lines = {
+            "",
+            "private String p(String value) {",
+            "    return project.replaceProperties(value);",
+            "}",
+            "",
+            "private File file(String value) {",
+            "    return project.resolveFile(p(value));",
+            "}",
+            "",
+            "private URL url(String value) {",
+            "    try {",
+            "        return new URL(p(value));",
+            "    } catch (MalformedURLException e) {",
+            "        throw new BuildException(e);",
+            "    }",
+            "}",
+            "",
+            "private <E extends EnumeratedAttribute> E attribute(Class<E> type, String value) {",
+            "    return type.cast(EnumeratedAttribute.getInstance(type, p(value)));",
+            "}",
+            "",
+            "private <R extends AntRef<? extends ProjectComponent>> R component(R ref) {",
+            "    ref.is().setProject(project);",
+            "    return ref;",
+            "}",
+            "",
+            "/**",
+            " * Evaluates the if and unless conditions of a target",
+            " */",
+            "private boolean skip(String ifCondition, String unlessCondition) {",
+            "    PropertyHelper helper = PropertyHelper.getPropertyHelper(project);",
+            "    if (ifCondition != null && !helper.testIfCondition(helper.parseProperties(ifCondition))) {",
+            "        project.log(\"Skipped because property '\" + p(ifCondition) + \"' not set.\", "
+                    + "Project.MSG_VERBOSE);",
+            "        return true;",
+            "    }",
+            "    if (unlessCondition != null && !helper.testUnlessCondition(helper.parseProperties(unlessCondition))) {",
+            "        project.log(\"Skipped because property '\" + p(unlessCondition) + \"' set.\", "
+                    + "Project.MSG_VERBOSE);",
+            "        return true;",
+            "    }",
+            "    return false;",
+            "}",
+        };
+        for (String text : lines) {
+            line(text.isEmpty() ? 0 : 1, text);
+        }
+    }
+
+    /**
+     * Translates a node of a target, or of the project outside targets
+     */
+    private void statement(Node node, int depth) {
+        if (node.getNodeType() == Node.COMMENT_NODE) {
+            for (String text : node.getNodeValue().strip().split("\n")) {
+                line(depth, "// " + comment(text.strip()));
+            }
+            return;
+        }
+        if (!(node instanceof Element element)) return;
+
+        String name = element.getTagName();
+        String taskClass = taskClasses.getProperty(name);
+        if (taskClass != null && facades.containsKey(taskClass)) {
+            Class<?> facade = facades.get(taskClass);
+            line(depth, "ant.task(" + fields.get(taskClass) + ")");
+            String defaultName = facade.getSimpleName().toLowerCase();
+            if (!name.equals(defaultName)) line(depth + 1, ".taskName(" + literal(name) + ")");
+            configure(element, facade, depth + 1, Set.of("id"));
+            line(depth + 1, ".run();");
+            return;
+        }
+
+        String typeClass = typeClasses.getProperty(name);
+        Class<?> facade = typeClass == null ? null : facadeOf(typeClass);
+        if (facade != null && element.hasAttribute("id")) {
+            line(depth, "project.addReference(" + literal(element.getAttribute("id")) + ", "
+                    + construct(typeClass, facade));
+            configure(element, facade, depth + 2, Set.of("id"));
+            line(depth + 2, ".is());");
+            return;
+        }
+        unsupported(element, depth, typeClass != null ? "type without an id" : "task");
+    }
+
+    /**
+     * Finds the facade of a type that is declared outside a task
+     */
+    private Class<?> facadeOf(String typeClass) {
+        if (!typeClass.startsWith(ANT_PACKAGE + '.')) return null;
+        try {
+            return Class.forName(facadePackage + typeClass.substring(ANT_PACKAGE.length()).replace('$', '_'),
+                    false, catalog.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes an expression that creates a type facade with no parent, in the project
+     */
+    private String construct(String typeClass, Class<?> facade) {
+        String name = facade.getCanonicalName() + "<Void>";
+        try {
+            Class<?> type = Class.forName(typeClass, false, catalog.getClassLoader());
+            String antName = type.getCanonicalName();
+            try {
+                type.getConstructor(Project.class);
+                return "new " + name + "(new " + antName + "(project), null)";
+            } catch (NoSuchMethodException e) {
+                if (hasStaticCreate(facade)) return "component(" + facade.getCanonicalName() + ".create())";
+                return "component(new " + name + "(new " + antName + "(), null))";
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean hasStaticCreate(Class<?> facade) {
+        try {
+            return Modifier.isStatic(facade.getMethod("create").getModifiers());
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the method calls that set the attributes, text and nested elements of an element
+     */
+    private void configure(Element element, Class<?> facade, int depth, Set<String> ignored) {
+        for (int i = 0; i < element.getAttributes().getLength(); i++) {
+            Node attr = element.getAttributes().item(i);
+            String name = attr.getNodeName(), value = attr.getNodeValue();
+            if (ignored.contains(name)) continue;
+            String call = setter(facade, name, value);
+            if (call != null) {
+                line(depth, call);
+            } else {
+                warn("attribute " + name + " of <" + element.getTagName() + "> has no facade method");
+                line(depth, "// unsupported attribute " + name + "=\"" + comment(value) + "\"");
+            }
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE) {
+                text.append(node.getNodeValue());
+            }
+        }
+        if (!text.toString().isBlank()) {
+            if (method(facade, "addText", String.class) != null) {
+                line(depth, ".addText(" + string(text.toString()) + ")");
+            } else {
+                warn("<" + element.getTagName() + "> does not accept text");
+            }
+        }
+
+        for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.COMMENT_NODE) {
+                line(depth, "// " + comment(node.getNodeValue().strip()));
+            }
+            if (!(node instanceof Element child)) continue;
+            Method nested = nested(facade, child.getTagName());
+            if (nested == null) {
+                unsupported(child, depth, "nested element of <" + element.getTagName() + ">");
+                continue;
+            }
+            line(depth, "." + nested.getName() + "()");
+            configure(child, nested.getReturnType(), depth + 1, Set.of());
+            line(depth + 1, ".end()");
+        }
+    }
+
+    private void unsupported(Element element, int depth, String kind) {
+        warn("<" + element.getTagName() + "> is not supported as a " + kind);
+        StringBuilder xml = new StringBuilder("<" + element.getTagName());
+        for (int i = 0; i < element.getAttributes().getLength(); i++) {
+            Node attr = element.getAttributes().item(i);
+            xml.append(' ').append(attr.getNodeName()).append("=\"").append(attr.getNodeValue()).append('"');
+        }
+        line(depth, "// unsupported: " + comment(xml.toString())
+                + (element.hasChildNodes() ? ">...</" + element.getTagName() + ">" : "/>"));
+    }
+
+    /**
+     * Makes text safe to copy into a comment: javac translates unicode escapes even in comments,
+     * so backslashes are doubled, and line breaks and the end of a block comment are replaced
+     */
+    private static String comment(String text) {
+        return text.replace("\\", "\\\\").replaceAll("[\r\n]+", " ").replace("*/", "*&#47;");
+    }
+
+    private void warn(String message) {
+        warnings.add(context + ": " + message);
+    }
+
+    /**
+     * Finds the facade method that creates a nested element
+     */
+    private static Method nested(Class<?> facade, String name) {
+        for (Method m : facade.getMethods()) {
+            if (m.getParameterCount() == 0 && !Modifier.isStatic(m.getModifiers())
+                    && AntRef.class.isAssignableFrom(m.getReturnType())
+                    && (m.getName().equalsIgnoreCase("with" + name) || m.getName().equalsIgnoreCase("addConfigured" + name))) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    private static Method method(Class<?> facade, String name, Class<?> type) {
+        try {
+            return facade.getMethod(name, type);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the call of the facade method that sets an attribute, choosing among overloads as Ant does.
+     * Setters whose attribute names are Java keywords keep their {@code set} prefix in the facades.
+     * @return the call, or {@literal null} if there is no method that can take the value
+     */
+    private String setter(Class<?> facade, String name, String value) {
+        Method best = null;
+        String call = null;
+        int rank = Integer.MAX_VALUE;
+        for (Method m : facade.getMethods()) {
+            if (m.getParameterCount() != 1 || m.isVarArgs() || Modifier.isStatic(m.getModifiers())
+                    || !(m.getName().equalsIgnoreCase(name) || m.getName().equalsIgnoreCase("set" + name))
+                    || !facade.isAssignableFrom(m.getReturnType())) {
+                continue;
+            }
+            Class<?> type = m.getParameterTypes()[0];
+            String expression = value(type, value);
+            if (expression == null) continue;
+            int r = type == Object.class ? PREFERENCE.size() + 2 : type == String.class ? PREFERENCE.size() + 1
+                    : PREFERENCE.contains(type) ? PREFERENCE.indexOf(type) : PREFERENCE.size();
+            if (best == null || r < rank) {
+                best = m;
+                rank = r;
+                call = "." + m.getName() + "(" + expression + ")";
+            }
+        }
+        return call;
+    }
+
+    /**
+     * Writes an expression that converts an attribute value to a parameter type, as Ant's introspection does
+     * @return the expression, or {@literal null} if the type is not supported
+     */
+    private String value(Class<?> type, String value) {
+        boolean constant = !value.contains("$");
+        String string = string(value);
+        if (type == String.class || type == Object.class) return string;
+        if (type == File.class) return "file(" + literal(value) + ")";
+        if (type == boolean.class || type == Boolean.class) {
+            return constant ? String.valueOf(Project.toBoolean(value)) : "Project.toBoolean(" + string + ")";
+        }
+        if (type == int.class || type == Integer.class) return number(value, "Integer.parseInt", "");
+        if (type == long.class || type == Long.class) return number(value, "Long.parseLong", "L");
+        if (type == double.class || type == Double.class) return number(value, "Double.parseDouble", "");
+        if (type == org.apache.tools.ant.types.Path.class) {
+            return "new org.apache.tools.ant.types.Path(project, " + string + ")";
+        }
+        if (type == Reference.class) return "new " + Reference.class.getName() + "(project, " + string + ")";
+        if (type == URL.class) return "url(" + literal(value) + ")";
+        if (EnumeratedAttribute.class.isAssignableFrom(type) && Modifier.isPublic(type.getModifiers())) {
+            return "attribute(" + type.getCanonicalName() + ".class, " + literal(value) + ")";
+        }
+        if (type.isEnum() && Modifier.isPublic(type.getModifiers())) {
+            return type.getCanonicalName() + ".valueOf(" + string + ")";
+        }
+        return null;
+    }
+
+    private static String number(String value, String parse, String suffix) {
+        if (!value.contains("$")) {
+            try {
+                Double.parseDouble(value.trim());
+                return value.trim() + suffix;
+            } catch (NumberFormatException e) {
+                // parsed when the build runs, and fails as Ant would
+            }
+        }
+        return parse + "(" + string(value) + ")";
+    }
+
+    /**
+     * Writes an expression for a string in which properties are replaced when the build runs
+     */
+    private static String string(String value) {
+        return value.contains("$") ? "p(" + literal(value) + ")" : literal(value);
+    }
+
+    static String literal(String value) {
+        if (value == null) return "null";
+        StringBuilder s = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"' -> s.append("\\\"");
+                case '\\' -> s.append("\\\\");
+                case '\n' -> s.append("\\n");
+                case '\r' -> s.append("\\r");
+                case '\t' -> s.append("\\t");
+                default -> {
+                    if (c < 0x20 || c > 0x7e) {
+                        s.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        s.append(c);
+                    }
+                }
+            }
+        }
+        return s.append('"').toString();
+    }
+
+    private static String methodName(String target, java.util.Collection<String> used) {
+        StringBuilder name = new StringBuilder();
+        boolean upper = false;
+        for (char c : target.toCharArray()) {
+            if (Character.isJavaIdentifierPart(c) && c != '$') {
+                name.append(upper ? Character.toUpperCase(c) : name.length() == 0 ? Character.toLowerCase(c) : c);
+                upper = false;
+            } else {
+                upper = name.length() > 0;
+            }
+        }
+        if (name.length() == 0 || !Character.isJavaIdentifierStart(name.charAt(0))) name.insert(0, "target");
+        String base = name.toString();
+        if (RESERVED.contains(base)) base += "Target";
+        String unique = base;
+        for (int i = 2; used.contains(unique); i++) {
+            unique = base + i;
+        }
+        return unique;
+    }
+
+    private List<Element> children(Element element) {
+        List<Element> children = new ArrayList<>();
+        for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element e) children.add(e);
+        }
+        return children;
+    }
+
+    private void line(int depth, String text) {
+        out.append("    ".repeat(depth)).append(text).append('\n');
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Location;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * A pool of worker JVMs that run tasks in isolation from the JVM of the build and from each other.
+ * <p/>
+ * Tasks that are not thread-safe, or that leave static state behind, can be run concurrently in workers.
+ * Each worker is a long-lived JVM with the class path of this JVM, started when the pool is created,
+ * that runs one task at a time, each in a new project with the base directory and properties of the caller's.
+ * Tasks are sent as serialized {@link AntTaskSpec specs}, so their steps must only capture serializable values.
+ * The messages that a task logs are sent back as it runs and logged by a task of the same class
+ * in the caller's project, so they appear in the build log as if the task had run there,
+ * and properties that the task sets are copied to the caller's project when it finishes.
+ * A worker that fails or exits is replaced.
+ *
+ * @author gilesjb
+ * @see AntTaskSpec
+ */
+public class AntWorkerPool implements Closeable {
+
+    /**
+     * A task to run, and the state of the caller's project
+     */
+    private record Request(AntTaskSpec<?, ?> spec, File baseDir, Map<String, String> userProperties,
+            Map<String, String> properties, int messageLevel) implements Serializable {}
+
+    /**
+     * A message logged by the task
+     */
+    private record Message(String message, int priority) implements Serializable {}
+
+    /**
+     * The outcome of a task: the properties that it set, and its failure, if it failed
+     */
+    private record Done(Map<String, String> properties, String failure, Location location) implements Serializable {}
+
+    private final List<String> command = new ArrayList<>();
+    private final int messageLevel;
+    private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<>();
+    private final List<Worker> workers = new ArrayList<>();
+    private final ExecutorService clients = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "antsy-worker-client");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean closed;
+
+    /**
+     * Starts a pool of workers that send messages up to {@link Project#MSG_VERBOSE verbose} priority
+     * @param size the number of worker JVMs
+     */
+    public AntWorkerPool(int size) {
+        this(size, Project.MSG_VERBOSE, List.of());
+    }
+
+    /**
+     * Starts a pool of workers
+     * @param size the number of worker JVMs
+     * @param messageLevel the lowest priority of messages to send back, such as {@link Project#MSG_INFO}
+     * @param jvmOptions options for the worker JVMs, such as {@code -Xmx512m}
+     */
+    public AntWorkerPool(int size, int messageLevel, List<String> jvmOptions) {
+        this.messageLevel = messageLevel;
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(AntWorkerPool.class.getName());
+        try {
+            for (int i = 0; i < size; i++) {
+                idle.add(start());
+            }
+        } catch (IOException e) {
+            close();
+            throw new BuildException("Unable to start worker JVM", e);
+        }
+    }
+
+    private synchronized Worker start() throws IOException {
+        Worker worker = new Worker(new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start());
+        workers.add(worker);
+        return worker;
+    }
+
+    /**
+     * Runs a task in a worker, waiting for a worker to become free if they are all busy
+     * @param spec the task
+     * @param project the project whose base directory and properties the task runs with,
+     * and which it logs to
+     * @throws BuildException if the task fails, cannot be serialized, or its worker fails,
+     * or if the pool is closed
+     */
+    public void run(AntTaskSpec<?, ?> spec, AntProject project) {
+        Project caller = project.project();
+        Task task = AntTask.create(spec.type(), caller).is();
+        byte[] request = serialize(new Request(spec, caller.getBaseDir(), strings(caller.getUserProperties()),
+                strings(caller.getProperties()), messageLevel), task);
+
+        Worker worker = take(task);
+        List<BuildListener> listeners = caller.getBuildListeners();
+        BuildEvent started = new BuildEvent(task);
+        listeners.forEach(listener -> listener.taskStarted(started));
+        BuildEvent finished = new BuildEvent(task);
+        try {
+            Done done;
+            try {
+                done = worker.execute(request, task);
+            } catch (IOException | ClassNotFoundException e) {
+                replace(worker);
+                throw new BuildException("Worker JVM failed: " + e, e, task.getLocation());
+            } catch (RuntimeException | Error e) {
+                replace(worker); // the reply may have been read only in part
+                throw e;
+            }
+            release(worker);
+            done.properties().forEach(caller::setNewProperty);
+            if (done.failure() != null) {
+                throw new BuildException(done.failure(),
+                        done.location() != null ? done.location() : task.getLocation());
+            }
+        } catch (RuntimeException | Error e) {
+            finished.setException(e);
+            throw e;
+        } finally {
+            listeners.forEach(listener -> listener.taskFinished(finished));
+        }
+    }
+
+    /**
+     * Waits for an idle worker
+     * @throws BuildException if the pool is closed, or has no workers left, while waiting
+     */
+    private Worker take(Task task) {
+        try {
+            while (true) {
+                if (closed) throw new BuildException("Worker pool is closed", task.getLocation());
+                Worker worker = idle.poll(100, TimeUnit.MILLISECONDS);
+                if (worker != null && !closed) return worker;
+                synchronized (this) {
+                    if (workers.isEmpty() && !closed) {
+                        throw new BuildException("No worker JVMs are running", task.getLocation());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while waiting for a worker", e, task.getLocation());
+        }
+    }
+
+    /**
+     * Returns a worker to the pool, or stops it if the pool has been closed
+     */
+    private void release(Worker worker) {
+        idle.add(worker);
+        if (closed && idle.remove(worker)) {
+            worker.stop();
+        }
+    }
+
+    /**
+     * Runs a task in a worker asynchronously
+     * @param spec the task
+     * @param project the project whose base directory and properties the task runs with
+     * @return a future that completes when the task has finished, or completes exceptionally with its failure
+     */
+    public CompletableFuture<Void> runAsync(AntTaskSpec<?, ?> spec, AntProject project) {
+        return CompletableFuture.runAsync(() -> run(spec, project), clients);
+    }
+
+    private static byte[] serialize(Request request, Task task) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(request);
+        } catch (IOException e) {
+            throw new BuildException("Unable to send task to worker: " + e, e, task.getLocation());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Map<String, String> strings(Map<String, Object> properties) {
+        Map<String, String> strings = new HashMap<>();
+        properties.forEach((name, value) -> {
+            if (value instanceof String s) strings.put(name, s);
+        });
+        return strings;
+    }
+
+    private void replace(Worker worker) {
+        worker.destroy();
+        synchronized (this) { // so that waiting callers do not see an empty pool in between
+            workers.remove(worker);
+            if (closed) return;
+            try {
+                idle.add(start());
+            } catch (IOException e) {
+                // the pool continues with one fewer worker
+            }
+        }
+    }
+
+    /**
+     * Stops the workers once they have finished their current tasks.
+     * Callers that are waiting for a worker fail.
+     */
+    @Override public void close() {
+        closed = true;
+        idle.clear();
+        List<Worker> all;
+        synchronized (this) {
+            all = new ArrayList<>(workers);
+            workers.clear();
+        }
+        for (Worker worker : all) {
+            worker.stop();
+        }
+        clients.shutdown();
+    }
+
+    /**
+     * The caller's side of a worker JVM
+     */
+    private static class Worker {
+        final Process process;
+        final ObjectOutputStream out;
+        ObjectInputStream in;
+
+        Worker(Process process) throws IOException {
+            this.process = process;
+            this.out = new ObjectOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            out.flush();
+        }
+
+        /**
+         * Sends a task, and logs its messages until it is done
+         */
+        Done execute(byte[] request, Task task) throws IOException, ClassNotFoundException {
+            out.writeObject(request);
+            out.flush();
+            out.reset();
+            if (in == null) {
+                in = new ObjectInputStream(new BufferedInputStream(process.getInputStream()));
+            }
+            while (true) {
+                Object reply = in.readObject();
+                if (reply instanceof Done done) return done;
+                Message message = (Message) reply;
+                task.log(message.message(), message.priority());
+            }
+        }
+
+        void stop() {
+            try {
+                out.close();
+                if (!process.waitFor(5, TimeUnit.SECONDS)) process.destroy();
+            } catch (IOException e) {
+                process.destroy();
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void destroy() {
+            process.destroyForcibly();
+        }
+    }
+
+    /**
+     * Runs a worker, reading tasks from standard input and writing messages and outcomes to standard output.
+     * Output that tasks write to the standard output stream goes to the standard error stream instead.
+     * This is started by the pool, and is not meant to be run directly.
+     * @param args ignored
+     * @throws IOException if the connection to the pool fails
+     */
+    public static void main(String[] args) throws IOException {
+        ObjectOutputStream out = new ObjectOutputStream(
+                new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        out.flush();
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(System.in));
+        System.setOut(System.err);
+        System.setIn(new ByteArrayInputStream(new byte[0]));
+
+        while (true) {
+            byte[] bytes;
+            try {
+                bytes = (byte[]) in.readObject();
+            } catch (EOFException e) {
+                return;
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+            Done done;
+            try (ObjectInputStream request = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                done = execute((Request) request.readObject(), out);
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                done = new Done(Map.of(), "Unable to run task in worker: " + e, null);
+            }
+            synchronized (out) {
+                out.writeObject(done);
+                out.flush();
+                out.reset();
+            }
+        }
+    }
+
+    /**
+     * Runs a task in a new project
+     */
+    private static Done execute(Request request, ObjectOutputStream out) {
+        Project project = new Project();
+        project.setBaseDir(request.baseDir());
+        request.userProperties().forEach(project::setUserProperty);
+        request.properties().forEach(project::setNewProperty);
+        Map<String, Object> before = new HashMap<>(project.getProperties());
+
+        project.addBuildListener(new BuildListener() {
+            @Override public void messageLogged(BuildEvent event) {
+                if (event.getPriority() > request.messageLevel()) return;
+                synchronized (out) {
+                    try {
+                        out.writeObject(new Message(event.getMessage(), event.getPriority()));
+                        out.flush();
+                    } catch (IOException e) {
+                        throw new BuildException(e);
+                    }
+                }
+            }
+            @Override public void buildStarted(BuildEvent event) {}
+            @Override public void buildFinished(BuildEvent event) {}
+            @Override public void targetStarted(BuildEvent event) {}
+            @Override public void targetFinished(BuildEvent event) {}
+            @Override public void taskStarted(BuildEvent event) {}
+            @Override public void taskFinished(BuildEvent event) {}
+        });
+
+        String failure = null;
+        Location location = null;
+        try {
+            request.spec().create(project).run();
+        } catch (BuildException e) {
+            failure = e.getMessage();
+            location = e.getLocation() == Location.UNKNOWN_LOCATION ? null : e.getLocation();
+        } catch (RuntimeException | Error e) {
+            failure = e.toString();
+        }
+
+        Map<String, String> properties = new HashMap<>();
+        project.getProperties().forEach((name, value) -> {
+            if (value instanceof String s && !value.equals(before.get(name))) properties.put(name, s);
+        });
+        return new Done(properties, failure, location);
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import static org.copalis.antsy.FileEngines.UNKNOWN;
+import static org.copalis.antsy.FileEngines.field;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.taskdefs.Jar;
+import org.apache.tools.ant.taskdefs.Manifest;
+import org.apache.tools.ant.taskdefs.MatchingTask;
+import org.apache.tools.ant.taskdefs.Zip;
+import org.apache.tools.ant.types.ArchiveFileSet;
+import org.apache.tools.ant.types.EnumeratedAttribute;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.ResourceCollection;
+import org.apache.tools.ant.types.ZipFileSet;
+
+/**
+ * Runs the {@code zip} and {@code jar} tasks with a {@link ZipWriter},
+ * which compresses entries on the fork/join common pool.
+ * <p/>
+ * Ant decides whether the archive is out of date, which files it holds, and what its manifest contains,
+ * and the entries are named, ordered and timestamped as Ant would, so only the compressed data may differ.
+ * The engine declines tasks that update an existing archive, add the contents of other archives or
+ * non-file resources, use encodings other than UTF-8, or create indexes or service entries,
+ * which are then run by Ant as usual.
+ * <p/>
+ * A reproducible engine sorts the entries of each file set by name,
+ * and unless the task sets a modification time, gives every entry the time in the
+ * {@code SOURCE_DATE_EPOCH} environment variable, or 1980-01-01 if it is not set.
+ *
+ * @author gilesjb
+ * @see AntProject#archiveEngines(boolean)
+ */
+final class ArchiveEngine implements AntEngine<Zip> {
+
+    private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+    private static final byte[] JAR_MARKER = {(byte) 0xFE, (byte) 0xCA, 0, 0};
+    private static final int ROUNDUP_MILLIS = 1999;
+
+    private static final Method CHECK_ATTRIBUTES = method(Zip.class, "checkAttributesAndElements");
+    private static final Method IMPLICIT_FILESET = method(MatchingTask.class, "getImplicitFileSet");
+    private static final Method RESOURCES_TO_ADD = method(Zip.class, "getResourcesToAdd",
+            ResourceCollection[].class, File.class, boolean.class);
+    private static final Method CREATE_EMPTY = method(Zip.class, "createEmptyZip", File.class);
+    private static final Method CLEAN_UP = method(Zip.class, "cleanUp");
+    private static final Method CREATE_MANIFEST = method(Jar.class, "createManifest");
+    private static final Method OUT_OF_DATE = method(Zip.ArchiveState.class, "isOutOfDate");
+    private static final Method WITHOUT_RESOURCES = method(Zip.ArchiveState.class, "isWithoutAnyResources");
+    private static final Method STATE_RESOURCES = method(Zip.ArchiveState.class, "getResourcesToAdd");
+
+    private static Method method(Class<?> owner, String name, Class<?>... parameters) {
+        try {
+            Method m = owner.getDeclaredMethod(name, parameters);
+            m.setAccessible(true);
+            return m;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) throws IOException {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            if (e.getCause() instanceof Error error) throw error;
+            throw new BuildException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new BuildException(e);
+        }
+    }
+
+    private final boolean reproducible;
+
+    /**
+     * Creates an archive engine
+     * @param reproducible whether archives built from the same files should be identical
+     */
+    ArchiveEngine(boolean reproducible) {
+        this.reproducible = reproducible;
+    }
+
+    private static boolean is(Object task, Class<?> owner, String name, Object value) {
+        return value.equals(field(task, owner, name));
+    }
+
+    private static String value(Object task, Class<?> owner, String name) {
+        return field(task, owner, name) instanceof EnumeratedAttribute attribute ? attribute.getValue() : null;
+    }
+
+    private static boolean isEmpty(Object value) {
+        return value == null || value instanceof Collection<?> c && c.isEmpty();
+    }
+
+    @Override public boolean supports(Zip task) {
+        if (CHECK_ATTRIBUTES == null || IMPLICIT_FILESET == null || RESOURCES_TO_ADD == null || CREATE_EMPTY == null
+                || CLEAN_UP == null || OUT_OF_DATE == null || WITHOUT_RESOURCES == null || STATE_RESOURCES == null
+                || !(field(task, Zip.class, "resources") instanceof Collection<?> resources)) {
+            return false;
+        }
+        for (Object rc : resources) {
+            if (rc.getClass() != FileSet.class && rc.getClass() != ParallelFileSet.class
+                    && !(rc.getClass() == ZipFileSet.class && ((ZipFileSet) rc).getSrc(task.getProject()) == null)) {
+                return false;
+            }
+        }
+        String encoding = (String) field(task, Zip.class, "encoding");
+        Charset charset;
+        try {
+            charset = encoding == null ? Charset.defaultCharset() : Charset.forName(encoding);
+        } catch (RuntimeException e) {
+            return false;
+        }
+        String zip64 = value(task, Zip.class, "zip64Mode");
+        boolean supported = charset.equals(StandardCharsets.UTF_8)
+                && ("as-needed".equals(zip64) || "never".equals(zip64))
+                && "never".equals(value(task, Zip.class, "createUnicodeExtraFields"))
+                && is(task, Zip.class, "doUpdate", false)
+                && is(task, Zip.class, "doubleFilePass", false)
+                && field(task, Zip.class, "doCompress") instanceof Boolean
+                && field(task, Zip.class, "level") instanceof Integer
+                && field(task, Zip.class, "useLanguageEncodingFlag") instanceof Boolean
+                && field(task, Zip.class, "doFilesonly") instanceof Boolean
+                && field(task, Zip.class, "roundUp") instanceof Boolean
+                && field(task, Zip.class, "modTimeMillis") instanceof Long
+                && field(task, Zip.class, "fixedModTime") != UNKNOWN
+                && field(task, Zip.class, "baseDir") != UNKNOWN
+                && field(task, Zip.class, "duplicate") instanceof String
+                && field(task, Zip.class, "archiveType") instanceof String
+                && field(task, Zip.class, "comment") != UNKNOWN
+                && isEmpty(field(task, Zip.class, "groupfilesets"));
+        if (!supported || !(task instanceof Jar)) return supported;
+
+        String strict = value(task, Jar.class, "strict");
+        String filesetManifest = value(task, Jar.class, "filesetManifestConfig");
+        return CREATE_MANIFEST != null
+                && isEmpty(field(task, Jar.class, "serviceList"))
+                && is(task, Jar.class, "index", false)
+                && field(task, Jar.class, "indexJars") == null
+                && field(task, Jar.class, "flattenClassPaths") instanceof Boolean
+                && (strict == null || "ignore".equals(strict))
+                && (field(task, Jar.class, "filesetManifestConfig") == null || "skip".equals(filesetManifest));
+    }
+
+    /**
+     * The state of one execution of a task
+     */
+    private class Build {
+        final Zip task;
+        final Project project;
+        final File zipFile;
+        final boolean filesOnly, jar;
+        final int roundUp;
+        final Long fixedTime;
+        final String duplicate;
+        final Set<String> dirs = new HashSet<>(), files = new HashSet<>();
+        ZipWriter out;
+
+        Build(Zip task, File zipFile) {
+            this.task = task;
+            this.project = task.getProject();
+            this.zipFile = zipFile;
+            this.filesOnly = (Boolean) field(task, Zip.class, "doFilesonly");
+            this.jar = task instanceof Jar;
+            this.roundUp = (Boolean) field(task, Zip.class, "roundUp") ? ROUNDUP_MILLIS : 0;
+            this.duplicate = (String) field(task, Zip.class, "duplicate");
+            if (field(task, Zip.class, "fixedModTime") != null) {
+                fixedTime = (Long) field(task, Zip.class, "modTimeMillis");
+            } else if (reproducible) {
+                String epoch = System.getenv("SOURCE_DATE_EPOCH");
+                fixedTime = epoch != null && !epoch.isBlank() ? Long.parseLong(epoch.trim()) * 1000
+                        : LocalDateTime.of(1980, 1, 1, 0, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            } else {
+                fixedTime = null;
+            }
+        }
+
+        long time(long modified) {
+            return fixedTime != null ? fixedTime : modified;
+        }
+
+        /**
+         * Adds the files of a file set, as {@code Zip.addResources} does
+         */
+        void addResources(FileSet fileset, Resource[] resources) throws IOException {
+            String prefix = "", fullpath = "";
+            int dirMode = ArchiveFileSet.DEFAULT_DIR_MODE, fileMode = ArchiveFileSet.DEFAULT_FILE_MODE;
+            ZipFileSet zfs = fileset instanceof ZipFileSet z ? z : null;
+            if (zfs != null) {
+                prefix = zfs.getPrefix(project);
+                fullpath = zfs.getFullpath(project);
+                dirMode = zfs.getDirMode(project);
+                fileMode = zfs.getFileMode(project);
+            }
+            if (!prefix.isEmpty() && !fullpath.isEmpty()) {
+                throw new BuildException("Both prefix and fullpath attributes must not be set on the same fileset.");
+            }
+            if (resources.length != 1 && !fullpath.isEmpty()) {
+                throw new BuildException("fullpath attribute may only be specified for filesets "
+                        + "that specify a single file.");
+            }
+            if (!prefix.isEmpty()) {
+                if (!prefix.endsWith("/") && !prefix.endsWith("\\")) {
+                    prefix += "/";
+                }
+                addParentDirs(null, prefix, "", dirMode);
+            }
+            if (reproducible) {
+                resources = resources.clone();
+                Arrays.sort(resources, Comparator.comparing(r -> r.getName().replace(File.separatorChar, '/')));
+            }
+
+            File base = fileset.getDir(project);
+            for (Resource resource : resources) {
+                String name = (fullpath.isEmpty() ? resource.getName() : fullpath).replace(File.separatorChar, '/');
+                if (name.isEmpty()) continue;
+                if (resource.isDirectory()) {
+                    if (filesOnly) continue;
+                    if (!name.endsWith("/")) name += "/";
+                    int nextToLastSlash = name.lastIndexOf('/', name.length() - 2);
+                    if (nextToLastSlash != -1) {
+                        addParentDirs(base, name.substring(0, nextToLastSlash + 1), prefix, dirMode);
+                    }
+                    zipDir(resource.isExists() ? resource.getLastModified() : -1, prefix + name, dirMode, null);
+                } else {
+                    addParentDirs(base, name, prefix, dirMode);
+                    File file = new File(base, resource.getName());
+                    if (file.equals(zipFile)) {
+                        throw new BuildException("A zip file cannot include itself", task.getLocation());
+                    }
+                    if (jar && MANIFEST_NAME.equalsIgnoreCase(prefix + name)) {
+                        task.log("skipping " + file + " as the manifest is configured by the task",
+                                Project.MSG_VERBOSE);
+                        continue;
+                    }
+                    if (add(prefix + name)) {
+                        out.file(prefix + name, file, time(file.lastModified() + roundUp), fileMode);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Adds the directories of an entry name that have not been added yet, as {@code Zip.addParentDirs} does
+         */
+        void addParentDirs(File base, String entry, String prefix, int dirMode) throws IOException {
+            if (filesOnly) return;
+            Deque<String> parents = new ArrayDeque<>();
+            for (int slash = entry.length(); (slash = entry.lastIndexOf('/', slash - 1)) != -1;) {
+                String dir = entry.substring(0, slash + 1);
+                if (dirs.contains(prefix + dir)) break;
+                parents.push(dir);
+            }
+            for (String dir : parents) {
+                File f = base != null ? new File(base, dir) : new File(dir);
+                zipDir(f.exists() ? f.lastModified() : -1, prefix + dir, dirMode, null);
+            }
+        }
+
+        /**
+         * Adds a directory entry, if it has not already been added
+         * @param modified the modification time of the directory, or -1 if it does not exist
+         */
+        void zipDir(long modified, String name, int mode, byte[] extra) throws IOException {
+            if (!dirs.add(name)) return;
+            task.log("adding directory " + name, Project.MSG_VERBOSE);
+            long time = (modified < 0 ? System.currentTimeMillis() : modified) + roundUp;
+            out.directory(name, time(time), mode, extra == null ? new byte[0] : extra);
+        }
+
+        /**
+         * Checks whether a file entry should be added, as {@code Zip.zipFile} does
+         * @return {@literal false} if the entry should be skipped
+         */
+        boolean add(String name) {
+            if (files.contains(name)) {
+                if ("preserve".equals(duplicate)) {
+                    task.log(name + " already added, skipping", Project.MSG_INFO);
+                    return false;
+                }
+                if ("fail".equals(duplicate)) {
+                    throw new BuildException("Duplicate file %s was found and the duplicate attribute is 'fail'.",
+                            name);
+                }
+                task.log("duplicate file " + name + " found, adding.", Project.MSG_VERBOSE);
+            } else {
+                task.log("adding entry " + name, Project.MSG_VERBOSE);
+            }
+            files.add(name);
+            return true;
+        }
+
+        /**
+         * Writes the manifest, as {@code Jar.writeManifest} does
+         */
+        void writeManifest() throws IOException {
+            Manifest manifest = (Manifest) invoke(CREATE_MANIFEST, task);
+            for (String warning : (Iterable<String>) () -> manifest.getWarnings().asIterator()) {
+                task.log("Manifest warning: " + warning, Project.MSG_WARN);
+            }
+            zipDir(-1, "META-INF/", ArchiveFileSet.DEFAULT_DIR_MODE, JAR_MARKER);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8));
+            manifest.write(writer, (Boolean) field(task, Jar.class, "flattenClassPaths"));
+            if (writer.checkError()) {
+                throw new IOException("Encountered an error writing the manifest");
+            }
+            writer.close();
+            if (add(MANIFEST_NAME)) {
+                out.file(MANIFEST_NAME, bytes.toByteArray(), time(System.currentTimeMillis()),
+                        ArchiveFileSet.DEFAULT_FILE_MODE);
+            }
+        }
+    }
+
+    @Override public void execute(Zip task) {
+        String archiveType = (String) field(task, Zip.class, "archiveType");
+        File zipFile = null;
+        try {
+            invoke(CHECK_ATTRIBUTES, task);
+            zipFile = (File) field(task, Zip.class, "zipFile");
+
+            List<ResourceCollection> collections = new ArrayList<>();
+            File baseDir = (File) field(task, Zip.class, "baseDir");
+            if (baseDir != null) {
+                FileSet fs = (FileSet) ((FileSet) invoke(IMPLICIT_FILESET, task)).clone();
+                fs.setDir(baseDir);
+                collections.add(fs);
+            }
+            @SuppressWarnings("unchecked")
+            Collection<ResourceCollection> resources = (Collection<ResourceCollection>)
+                    field(task, Zip.class, "resources");
+            collections.addAll(resources);
+            ResourceCollection[] fss = collections.toArray(new ResourceCollection[0]);
+
+            Object state = invoke(RESOURCES_TO_ADD, task, fss, zipFile, false);
+            if (!(Boolean) invoke(OUT_OF_DATE, state)) return;
+
+            File parent = zipFile.getParentFile();
+            if (parent != null && !parent.isDirectory() && !(parent.mkdirs() || parent.isDirectory())) {
+                throw new BuildException("Failed to create missing parent directory for %s", zipFile);
+            }
+            if (!zipFile.exists() && (Boolean) invoke(WITHOUT_RESOURCES, state)) {
+                invoke(CREATE_EMPTY, task, zipFile);
+                return;
+            }
+            Resource[][] addThem = (Resource[][]) invoke(STATE_RESOURCES, state);
+
+            task.log("Building " + archiveType + ": " + zipFile.getAbsolutePath());
+            Build build = new Build(task, zipFile);
+            String encoding = (String) field(task, Zip.class, "encoding");
+            Charset charset = encoding == null ? Charset.defaultCharset() : Charset.forName(encoding);
+            int level = (Integer) field(task, Zip.class, "level");
+            try (ZipWriter out = new ZipWriter(zipFile, ForkJoinPool.commonPool(),
+                    ForkJoinPool.getCommonPoolParallelism(),
+                    (Boolean) field(task, Zip.class, "doCompress") ? level : null, charset,
+                    (Boolean) field(task, Zip.class, "useLanguageEncodingFlag"),
+                    "as-needed".equals(value(task, Zip.class, "zip64Mode")))) {
+                build.out = out;
+                if (build.jar) build.writeManifest();
+                for (int i = 0; i < fss.length; i++) {
+                    if (addThem[i].length != 0) build.addResources((FileSet) fss[i], addThem[i]);
+                }
+                out.finish((String) field(task, Zip.class, "comment"));
+            }
+        } catch (IOException e) {
+            String msg = "Problem creating " + archiveType + ": " + e.getMessage();
+            if (zipFile != null && zipFile.exists() && !zipFile.delete()) {
+                msg += " (and the archive is probably corrupt but I could not delete it)";
+            }
+            throw new BuildException(msg, e, task.getLocation());
+        } finally {
+            try {
+                invoke(CLEAN_UP, task);
+            } catch (IOException e) {
+                throw new BuildException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,536 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.Concat;
+import org.apache.tools.ant.taskdefs.Copy;
+import org.apache.tools.ant.taskdefs.Delete;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.ResourceCollection;
+import org.apache.tools.ant.types.resources.FileProvider;
+
+/**
+ * Engines that implement the common forms of the file tasks with NIO.
+ * <p/>
+ * Files are copied with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * which lets the operating system copy the data without passing it through the Java heap,
+ * several files are copied at once, directory trees are deleted in parallel,
+ * and files are moved by atomic renames where the file system allows it.
+ * The engines read the task configuration from the Ant task fields,
+ * and decline tasks that use filters, mappers, encodings, non-file resources or unusual error handling,
+ * which are then run by Ant as usual.
+ *
+ * @author gilesjb
+ * @see AntProject#fileEngines()
+ */
+final class FileEngines {
+
+    private FileEngines() {}
+
+    static final Object UNKNOWN = new Object();
+    private static final Map<String, Field> FIELDS = new ConcurrentHashMap<>();
+
+    /**
+     * Reads a field of a task
+     * @return the value of the field, or {@link #UNKNOWN} if it does not exist in this version of Ant
+     */
+    static Object field(Object task, Class<?> owner, String name) {
+        Field field = FIELDS.computeIfAbsent(owner.getName() + '.' + name, key -> {
+            try {
+                Field f = owner.getDeclaredField(name);
+                f.setAccessible(true);
+                return f;
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return null;
+            }
+        });
+        try {
+            return field == null ? UNKNOWN : field.get(task);
+        } catch (IllegalAccessException e) {
+            return UNKNOWN;
+        }
+    }
+
+    private static boolean isTrue(Object task, Class<?> owner, String name) {
+        return Boolean.TRUE.equals(field(task, owner, name));
+    }
+
+    private static boolean isEmpty(Object value) {
+        return value == null || value instanceof Collection<?> c && c.isEmpty();
+    }
+
+    /**
+     * A file to be transferred, relative to the task's destination
+     */
+    private record Transfer(File from, File to) {}
+
+    /**
+     * Scans plain file sets, including the parallel file sets that facades create
+     * @return {@literal false} if any of the collections is not a plain file set with an existing directory
+     */
+    private static boolean scannable(Project project, Collection<?> collections) {
+        for (Object rc : collections) {
+            if (rc.getClass() != FileSet.class && rc.getClass() != ParallelFileSet.class) return false;
+            File dir = ((FileSet) rc).getDir(project);
+            if (dir == null || !dir.isDirectory()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Finds the transfers and destination directories of the file sets of a copy or move task
+     */
+    private static void scan(Copy task, File destDir, List<Transfer> files, List<File> dirs) {
+        Project project = task.getProject();
+        boolean flatten = isTrue(task, Copy.class, "flatten");
+        @SuppressWarnings("unchecked")
+        Collection<ResourceCollection> rcs = (Collection<ResourceCollection>) field(task, Copy.class, "rcs");
+        for (ResourceCollection rc : rcs) {
+            FileSet fs = (FileSet) rc;
+            File base = fs.getDir(project);
+            DirectoryScanner ds = fs.getDirectoryScanner(project);
+            for (String name : ds.getIncludedFiles()) {
+                files.add(new Transfer(new File(base, name),
+                        new File(destDir, flatten ? new File(name).getName() : name)));
+            }
+            for (String name : ds.getIncludedDirectories()) {
+                dirs.add(new File(destDir, flatten ? new File(name).getName() : name));
+            }
+        }
+    }
+
+    /**
+     * Copies a file through file channels, replacing the destination
+     */
+    static void copy(File from, File to, boolean preserveLastModified) throws IOException {
+        Path source = from.toPath(), target = to.toPath();
+        Files.createDirectories(target.getParent());
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            for (long position = 0; position < size; ) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+        if (preserveLastModified) {
+            Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+        }
+    }
+
+    /**
+     * Runs the transfers in parallel.
+     * Transfers to the same destination, as happens when flattening, run in their original order,
+     * and like Ant, later ones are skipped if the destination is already up to date.
+     * @throws BuildException with the first failure
+     */
+    private static void transfer(Copy task, List<Transfer> transfers, String verb, FileOperation operation) {
+        int verbosity = (Integer) field(task, Copy.class, "verbosity");
+        Map<File, List<Transfer>> byDestination = new LinkedHashMap<>();
+        for (Transfer t : transfers) {
+            byDestination.computeIfAbsent(t.to(), to -> new ArrayList<>(1)).add(t);
+        }
+        byDestination.values().parallelStream().forEach(group -> group.forEach(t -> {
+            if (t != group.get(0) && !outOfDate(task, t)) return;
+            task.log(verb + ' ' + t.from() + " to " + t.to(), verbosity);
+            try {
+                operation.apply(t.from(), t.to());
+            } catch (IOException | UncheckedIOException e) {
+                throw new BuildException("Failed " + verb.toLowerCase() + ' ' + t.from() + " to " + t.to()
+                        + " due to " + e, e, task.getLocation());
+            }
+        }));
+    }
+
+    private static boolean outOfDate(Copy task, Transfer t) {
+        return isTrue(task, Copy.class, "forceOverwrite")
+                || t.to().lastModified() < t.from().lastModified() - (Long) field(task, Copy.class, "granularity");
+    }
+
+    private interface FileOperation {
+        void apply(File from, File to) throws IOException;
+    }
+
+    private static String files(int count) {
+        return count + (count == 1 ? " file" : " files");
+    }
+
+    /**
+     * Runs the {@code copy} task
+     */
+    static class CopyEngine implements AntEngine<Copy> {
+
+        @Override public boolean supports(Copy task) {
+            File file = (File) field(task, Copy.class, "file");
+            File destFile = (File) field(task, Copy.class, "destFile");
+            File destDir = (File) field(task, Copy.class, "destDir");
+            Collection<?> rcs = (Collection<?>) field(task, Copy.class, "rcs");
+            return field(task, Copy.class, "granularity") instanceof Long
+                    && field(task, Copy.class, "verbosity") instanceof Integer
+                    && rcs != null
+                    && field(task, Copy.class, "mapperElement") == null
+                    && field(task, Copy.class, "singleResource") == null
+                    && !isTrue(task, Copy.class, "filtering")
+                    && !isTrue(task, Copy.class, "force")
+                    && isTrue(task, Copy.class, "failonerror")
+                    && isEmpty(field(task, Copy.class, "filterChains"))
+                    && isEmpty(field(task, Copy.class, "filterSets"))
+                    && task.getEncoding() == null && task.getOutputEncoding() == null
+                    && (file == null || file.isFile())
+                    && (destFile != null && destDir == null && file != null && rcs.isEmpty()
+                        || destFile == null && destDir != null && (file != null || !rcs.isEmpty()))
+                    && scannable(task.getProject(), rcs);
+        }
+
+        @Override public void execute(Copy task) {
+            File file = (File) field(task, Copy.class, "file");
+            File destFile = (File) field(task, Copy.class, "destFile");
+            File destDir = (File) field(task, Copy.class, "destDir");
+
+            List<Transfer> candidates = new ArrayList<>();
+            List<File> dirs = new ArrayList<>();
+            if (file != null) {
+                candidates.add(new Transfer(file, destFile != null ? destFile : new File(destDir, file.getName())));
+            }
+            if (destDir != null) scan(task, destDir, candidates, dirs);
+
+            List<Transfer> transfers = candidates.parallelStream()
+                    .filter(t -> outOfDate(task, t))
+                    .toList();
+            if (!transfers.isEmpty()) {
+                task.log("Copying " + files(transfers.size()) + " to "
+                        + (destFile != null ? destFile.getParentFile() : destDir).getAbsolutePath());
+                boolean preserve = task.getPreserveLastModified();
+                transfer(task, transfers, "Copying", (from, to) -> copy(from, to, preserve));
+            }
+            if (destDir != null) createEmptyDirs(task, destDir, dirs, "Copied");
+        }
+    }
+
+    private static void createEmptyDirs(Copy task, File destDir, List<File> dirs, String verb) {
+        if (!isTrue(task, Copy.class, "includeEmpty")) return;
+        int created = 0;
+        for (File dir : dirs) {
+            if (!dir.exists()) {
+                if (!dir.mkdirs() && !dir.isDirectory()) {
+                    throw new BuildException("Unable to create directory " + dir.getAbsolutePath(), task.getLocation());
+                }
+                created++;
+            }
+        }
+        if (created > 0) {
+            task.log(verb + ' ' + directories(dirs.size()) + " to " + directories(created) + " under "
+                    + destDir.getAbsolutePath());
+        }
+    }
+
+    private static String directories(int count) {
+        return count + (count == 1 ? " empty directory" : " empty directories");
+    }
+
+    /**
+     * Runs the {@code move} task
+     */
+    static class MoveEngine extends CopyEngine {
+
+        @Override public void execute(Copy task) {
+            File file = (File) field(task, Copy.class, "file");
+            File destFile = (File) field(task, Copy.class, "destFile");
+            File destDir = (File) field(task, Copy.class, "destDir");
+
+            List<Transfer> candidates = new ArrayList<>();
+            List<File> dirs = new ArrayList<>();
+            if (file != null) {
+                candidates.add(new Transfer(file, destFile != null ? destFile : new File(destDir, file.getName())));
+            }
+            if (destDir != null) scan(task, destDir, candidates, dirs);
+
+            List<Transfer> transfers = candidates.stream()
+                    .filter(t -> outOfDate(task, t))
+                    .toList();
+            if (!transfers.isEmpty()) {
+                task.log("Moving " + files(transfers.size()) + " to "
+                        + (destFile != null ? destFile.getParentFile() : destDir).getAbsolutePath());
+                boolean preserve = task.getPreserveLastModified();
+                transfer(task, transfers, "Moving", (from, to) -> move(from, to, preserve));
+            }
+            if (destDir != null) createEmptyDirs(task, destDir, dirs, "Moved");
+
+            @SuppressWarnings("unchecked")
+            Collection<ResourceCollection> rcs = (Collection<ResourceCollection>) field(task, Copy.class, "rcs");
+            for (ResourceCollection rc : rcs) {
+                Path dir = ((FileSet) rc).getDir(task.getProject()).toPath();
+                try {
+                    if (!containsFiles(dir)) {
+                        task.log("Deleting directory " + dir.toAbsolutePath(), Project.MSG_VERBOSE);
+                        ForkJoinPool.commonPool().invoke(new DeleteTree(dir));
+                    }
+                } catch (IOException | UncheckedIOException e) {
+                    throw new BuildException("Unable to delete directory " + dir.toAbsolutePath(), e, task.getLocation());
+                }
+            }
+        }
+
+        private static void move(File from, File to, boolean preserveLastModified) throws IOException {
+            Files.createDirectories(to.toPath().getParent());
+            try {
+                Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                copy(from, to, preserveLastModified);
+                Files.delete(from.toPath());
+            }
+        }
+
+        private static boolean containsFiles(Path dir) throws IOException {
+            try (var entries = Files.walk(dir)) {
+                return entries.anyMatch(path -> !Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS));
+            }
+        }
+    }
+
+    /**
+     * Deletes a directory tree, deleting the contents of its subdirectories in parallel.
+     * Symbolic links are deleted, not followed.
+     */
+    static class DeleteTree extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+
+        DeleteTree(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override protected void compute() {
+            List<DeleteTree> subdirs = new ArrayList<>();
+            try {
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                    for (Path entry : entries) {
+                        if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                            subdirs.add(new DeleteTree(entry));
+                        } else {
+                            Files.delete(entry);
+                        }
+                    }
+                }
+                invokeAll(subdirs);
+                Files.delete(dir);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Runs the {@code delete} task
+     */
+    static class DeleteEngine implements AntEngine<Delete> {
+
+        @Override public boolean supports(Delete task) {
+            File file = (File) field(task, Delete.class, "file");
+            File dir = (File) field(task, Delete.class, "dir");
+            Collection<?> filesets = (Collection<?>) field(task, Delete.class, "filesets");
+            return field(task, Delete.class, "verbosity") instanceof Integer
+                    && field(task, Delete.class, "quiet") instanceof Boolean
+                    && field(task, Delete.class, "failonerror") instanceof Boolean
+                    && filesets != null
+                    && field(task, Delete.class, "rcs") == null
+                    && !isTrue(task, Delete.class, "usedMatchingTask")
+                    && !isTrue(task, Delete.class, "deleteOnExit")
+                    && !isTrue(task, Delete.class, "removeNotFollowedSymlinks")
+                    && (file == null || !file.isDirectory() && (file.exists() || !Files.isSymbolicLink(file.toPath())))
+                    && (dir == null || !Files.isSymbolicLink(dir.toPath()))
+                    && (file != null || dir != null || !filesets.isEmpty())
+                    && scannable(task.getProject(), filesets);
+        }
+
+        @Override public void execute(Delete task) {
+            File file = (File) field(task, Delete.class, "file");
+            File dir = (File) field(task, Delete.class, "dir");
+            int verbosity = (Integer) field(task, Delete.class, "verbosity");
+            boolean quiet = isTrue(task, Delete.class, "quiet");
+
+            try {
+                if (file != null) {
+                    if (file.exists()) {
+                        task.log("Deleting: " + file.getAbsolutePath());
+                        Files.delete(file.toPath());
+                    } else {
+                        task.log("Could not find file " + file.getAbsolutePath() + " to delete.",
+                                quiet ? Project.MSG_VERBOSE : verbosity);
+                    }
+                }
+                if (dir != null && dir.isDirectory()) {
+                    task.log("Deleting directory " + dir.getAbsolutePath());
+                    ForkJoinPool.commonPool().invoke(new DeleteTree(dir.toPath()));
+                }
+
+                @SuppressWarnings("unchecked")
+                Collection<FileSet> filesets = (Collection<FileSet>) field(task, Delete.class, "filesets");
+                for (FileSet fs : filesets) {
+                    deleteFileSet(task, fs, verbosity);
+                }
+            } catch (IOException | UncheckedIOException e) {
+                String message = "Unable to delete " + e.getMessage();
+                if (isTrue(task, Delete.class, "failonerror")) {
+                    throw new BuildException(message, e, task.getLocation());
+                }
+                task.log(message, quiet ? Project.MSG_VERBOSE : Project.MSG_WARN);
+            }
+        }
+
+        private static void deleteFileSet(Delete task, FileSet fs, int verbosity) throws IOException {
+            int level = isTrue(task, Delete.class, "quiet") ? Project.MSG_VERBOSE : verbosity;
+            File base = fs.getDir(task.getProject());
+            if (!base.isDirectory()) return;
+            DirectoryScanner ds = fs.getDirectoryScanner(task.getProject());
+            String[] files = ds.getIncludedFiles();
+            if (files.length > 0) {
+                task.log("Deleting " + files(files.length) + " from " + base.getAbsolutePath(), level);
+            }
+            List.of(files).parallelStream().forEach(name -> {
+                File f = new File(base, name);
+                task.log("Deleting " + f.getAbsolutePath(), verbosity);
+                try {
+                    Files.delete(f.toPath());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            if (isTrue(task, Delete.class, "includeEmpty")) {
+                String[] dirs = ds.getIncludedDirectories();
+                List<String> deepestFirst = new ArrayList<>(List.of(dirs));
+                deepestFirst.sort(Comparator.comparingInt(String::length).reversed());
+                int deleted = 0;
+                for (String name : deepestFirst) {
+                    File d = new File(base, name);
+                    String[] contents = d.list();
+                    if (contents != null && contents.length == 0) {
+                        task.log("Deleting " + d.getAbsolutePath(), verbosity);
+                        Files.delete(d.toPath());
+                        deleted++;
+                    }
+                }
+                if (deleted > 0) {
+                    task.log("Deleted " + deleted + " director" + (deleted == 1 ? "y" : "ies")
+                            + " from " + base.getAbsolutePath(), level);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the {@code concat} task in binary mode, or in text mode when no conversion is needed
+     */
+    static class ConcatEngine implements AntEngine<Concat> {
+
+        @Override public boolean supports(Concat task) {
+            Object dest = field(task, Concat.class, "dest");
+            Object rc = field(task, Concat.class, "rc");
+            Object encoding = field(task, Concat.class, "encoding");
+            Object outputEncoding = field(task, Concat.class, "outputEncoding");
+            Object text = field(task, Concat.class, "textBuffer");
+            if (!(dest instanceof Resource destination) || destination.as(FileProvider.class) == null
+                    || !(rc instanceof ResourceCollection resources)
+                    || encoding == UNKNOWN || outputEncoding == UNKNOWN
+                    || !Objects.equals(encoding, outputEncoding) && !isTrue(task, Concat.class, "binary")
+                    || text == UNKNOWN || text != null && ((StringBuffer) text).length() > 0
+                    || !isEmpty(field(task, Concat.class, "filterChains"))
+                    || field(task, Concat.class, "header") != null
+                    || field(task, Concat.class, "footer") != null
+                    || field(task, Concat.class, "outputWriter") != null
+                    || isTrue(task, Concat.class, "fixLastLine")
+                    || isTrue(task, Concat.class, "force")
+                    || !(field(task, Concat.class, "forceOverwrite") instanceof Boolean)
+                    || !(field(task, Concat.class, "append") instanceof Boolean)) {
+                return false;
+            }
+            File target = destination.as(FileProvider.class).getFile();
+            if (target.exists() && !target.canWrite()) return false;
+            for (Resource r : resources) {
+                FileProvider provider = r.as(FileProvider.class);
+                if (provider == null || !provider.getFile().isFile() || provider.getFile().equals(target)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override public void execute(Concat task) {
+            File target = ((Resource) field(task, Concat.class, "dest")).as(FileProvider.class).getFile();
+            ResourceCollection resources = (ResourceCollection) field(task, Concat.class, "rc");
+            boolean append = isTrue(task, Concat.class, "append");
+
+            List<File> sources = new ArrayList<>();
+            for (Resource r : resources) {
+                sources.add(r.as(FileProvider.class).getFile());
+            }
+            if (sources.isEmpty() && isTrue(task, Concat.class, "ignoreEmpty")) return;
+            if (!isTrue(task, Concat.class, "forceOverwrite") && target.exists()
+                    && sources.stream().allMatch(f -> f.lastModified() <= target.lastModified())) {
+                task.log(target + " is up-to-date.", Project.MSG_VERBOSE);
+                return;
+            }
+
+            try {
+                Files.createDirectories(target.toPath().toAbsolutePath().getParent());
+                try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE,
+                        append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+                    for (File source : sources) {
+                        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                            long size = in.size();
+                            for (long position = 0; position < size; ) {
+                                position += in.transferTo(position, size - position, out);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new BuildException("Unable to concatenate to " + target + ": " + e, e, task.getLocation());
+            }
+        }
+    }
+}
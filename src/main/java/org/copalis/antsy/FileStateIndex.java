@@ -0,0 +1,227 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+/**
+ * A persistent index of file states and task fingerprints, stored under the project base directory.
+ * <p/>
+ * Each entry records a modification time, size and content hash.
+ * File contents are only hashed again when the modification time or size of the file changes.
+ * Task entries record the fingerprint of a task's last successful execution in the hash field.
+ * <p/>
+ * The index file is a sequence of entries, each a length-prefixed UTF-8 key followed by three longs,
+ * and is read and written through memory mapping.
+ *
+ * @author gilesjb
+ */
+class FileStateIndex {
+
+    static final String REFERENCE = "antsy.state";
+    static final String FILE = ".antsy/state.idx";
+
+    private static final int MAGIC = 0x414e5459, VERSION = 1;
+    private static final String LOCK = ".lock";
+    private static final Map<Path, Object> monitors = new ConcurrentHashMap<>();
+
+    record Entry(long mtime, long size, long hash) {}
+
+    private final File file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    FileStateIndex(File file) {
+        this.file = file;
+        if (file.isFile()) load();
+    }
+
+    /**
+     * Gets the index belonging to a project, loading it on first use
+     * @param project the Ant project
+     * @return the index stored under the project base directory
+     */
+    static FileStateIndex of(Project project) {
+        synchronized (project) {
+            FileStateIndex index = project.getReference(REFERENCE);
+            if (index == null) {
+                index = new FileStateIndex(new File(project.getBaseDir(), FILE));
+                project.addReference(REFERENCE, index);
+            }
+            return index;
+        }
+    }
+
+    Entry get(String key) {
+        return entries.get(key);
+    }
+
+    void put(String key, Entry entry) {
+        entries.put(key, entry);
+    }
+
+    /**
+     * Gets the content hash of a file, using the indexed hash if the file has not changed
+     * @param path the file
+     * @return the content hash, or 0 if the file does not exist
+     */
+    long hash(File path) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return 0;
+        }
+        String key = path.getAbsolutePath();
+        long mtime = attrs.lastModifiedTime().toMillis(), size = attrs.size();
+        Entry entry = entries.get(key);
+        if (entry == null || entry.mtime() != mtime || entry.size() != size) {
+            entry = new Entry(mtime, size, attrs.isDirectory() ? 1 : contentHash(path));
+            entries.put(key, entry);
+        }
+        return entry.hash();
+    }
+
+    static long contentHash(File path) {
+        MessageDigest digest = digest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(path.toPath())) {
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                digest.update(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            throw new BuildException("Cannot read " + path, e);
+        }
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void load() {
+        try {
+            read(entries);
+        } catch (IOException | RuntimeException e) {
+            entries.clear(); // unreadable or truncated index is treated as empty
+        }
+    }
+
+    private void read(Map<String, Entry> into) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.remaining() < 12 || buf.getInt() != MAGIC || buf.getInt() != VERSION) return;
+            for (int count = buf.getInt(); count > 0; count--) {
+                byte[] key = new byte[buf.getShort() & 0xffff];
+                buf.get(key);
+                into.put(new String(key, StandardCharsets.UTF_8),
+                        new Entry(buf.getLong(), buf.getLong(), buf.getLong()));
+            }
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file, which then replaces the index file.
+     * Other indexes of the same file, in this JVM or others, are excluded by a file lock,
+     * and the entries they saved since this index was loaded are merged into it first.
+     */
+    void save() {
+        Path path = file.getAbsoluteFile().toPath().normalize();
+        synchronized (monitors.computeIfAbsent(path, p -> new Object())) {
+            try {
+                Files.createDirectories(path.getParent());
+                try (FileChannel channel = FileChannel.open(path.resolveSibling(path.getFileName() + LOCK),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    FileLock lock = channel.lock();
+                    try {
+                        merge();
+                        write(path);
+                    } finally {
+                        lock.release();
+                    }
+                }
+            } catch (IOException e) {
+                throw new BuildException("Cannot write " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Adds the saved entries that this index does not have
+     */
+    private void merge() {
+        if (!file.isFile()) return;
+        Map<String, Entry> saved = new HashMap<>();
+        try {
+            read(saved);
+        } catch (IOException | RuntimeException e) {
+            return; // an unreadable index is replaced
+        }
+        saved.forEach(entries::putIfAbsent);
+    }
+
+    private void write(Path path) throws IOException {
+        Map<String, Entry> snapshot = Map.copyOf(entries);
+        Map<String, byte[]> keys = new HashMap<>();
+        long size = 12;
+        for (String key : snapshot.keySet()) {
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xffff) continue;
+            keys.put(key, bytes);
+            size += 2 + bytes.length + 24;
+        }
+
+        Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buf.putInt(MAGIC).putInt(VERSION).putInt(keys.size());
+                keys.forEach((key, bytes) -> {
+                    Entry entry = snapshot.get(key);
+                    buf.putShort((short) bytes.length).put(bytes)
+                        .putLong(entry.mtime()).putLong(entry.size()).putLong(entry.hash());
+                });
+                buf.force();
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
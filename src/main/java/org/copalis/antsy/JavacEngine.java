@@ -0,0 +1,618 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.taskdefs.Javac;
+import org.apache.tools.ant.taskdefs.MatchingTask;
+import org.apache.tools.ant.taskdefs.compilers.Javac13;
+import org.apache.tools.ant.types.Commandline;
+
+/**
+ * An engine that runs the {@code javac} task with the compiler of the running JVM,
+ * recompiling only the sources that have changed and the sources that depend on them.
+ * <p/>
+ * For each destination directory and set of source directories, the engine keeps a file manager
+ * and the classes compiled from each source, with the classes they refer to,
+ * which are read from the constant pools of the class files, and the class path entries that supplied them.
+ * The first execution in a JVM reads this state from the classes already in the destination directory.
+ * When a source changes, its classes and the classes that refer to them or extend them are recompiled;
+ * when a class on the class path changes, the classes that refer to it are recompiled.
+ * Everything is recompiled when the compiler options change, when a changed class declares constants,
+ * which the compiler copies into the classes that use them,
+ * or when annotation processors have generated files.
+ * <p/>
+ * The compiler options are built by Ant's own compiler adapter.
+ * Tasks that fork the compiler, use another compiler or compile modules are run by Ant as usual.
+ *
+ * @author gilesjb
+ * @see AntProject#javacEngine()
+ */
+final class JavacEngine implements AntEngine<Javac> {
+
+    private static final String FAIL_MSG = "Compile failed; see the compiler error output for details.";
+    private static final Pattern JDK_COMPILER = Pattern.compile("modern|classic|javac1\\.\\d+|javac\\d+\\+?");
+    private static final Pattern DESCRIPTOR = Pattern.compile("L([^;<>\\[.]+)[;<]");
+    private static final Method SCANNER = scanner();
+
+    private static Method scanner() {
+        try {
+            Method method = MatchingTask.class.getDeclaredMethod("getDirectoryScanner", File.class);
+            method.setAccessible(true);
+            return method;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    private final Map<List<File>, Unit> units = new ConcurrentHashMap<>();
+
+    @Override public boolean supports(Javac task) {
+        if (compiler == null || SCANNER == null || task.isForkedJavac()
+                || !JDK_COMPILER.matcher(task.getCompiler()).matches()
+                || FileEngines.field(task, Javac.class, "nestedAdapter") != null
+                || task.getSrcdir() == null || task.getModulesourcepath() != null || !task.isIncludeDestClasses()
+                || task.getDestdir() == null || !task.getDestdir().isDirectory()) {
+            return false;
+        }
+        for (String dir : task.getSrcdir().list()) {
+            if (!task.getProject().resolveFile(dir).isDirectory()) return false;
+        }
+        return true;
+    }
+
+    @Override public void execute(Javac task) {
+        File destDir = task.getDestdir().getAbsoluteFile();
+        List<File> key = new ArrayList<>();
+        key.add(destDir);
+        Map<File, String> sources = new LinkedHashMap<>();
+        try {
+            for (String dir : task.getSrcdir().list()) {
+                File srcDir = task.getProject().resolveFile(dir).getAbsoluteFile();
+                key.add(srcDir);
+                DirectoryScanner ds = (DirectoryScanner) SCANNER.invoke(task, srcDir);
+                for (String name : ds.getIncludedFiles()) {
+                    if (name.endsWith(".java")) {
+                        sources.putIfAbsent(new File(srcDir, name), name.replace(File.separatorChar, '/'));
+                    }
+                }
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new BuildException(e, task.getLocation());
+        }
+        List<String> options = new Switches().of(task);
+
+        Unit unit = units.computeIfAbsent(key, k -> new Unit(destDir));
+        synchronized (unit) {
+            try {
+                unit.compile(task, sources, options);
+            } catch (IOException e) {
+                throw new BuildException(e, task.getLocation());
+            }
+        }
+    }
+
+    /**
+     * Builds the compiler options of a task the way Ant's modern compiler adapter does
+     */
+    private static class Switches extends Javac13 {
+        List<String> of(Javac task) {
+            setJavac(task);
+            return List.of(setupModernJavacCommandlineSwitches(new Commandline()).getArguments());
+        }
+    }
+
+    /**
+     * The modification time and length of a file
+     */
+    private record Stamp(long modified, long length) {
+        static final Stamp STALE = new Stamp(-1, -1);
+
+        static Stamp of(File file) {
+            return new Stamp(file.lastModified(), file.length());
+        }
+    }
+
+    /**
+     * A source that has been compiled, and the names of the classes compiled from it
+     */
+    private record Source(Stamp stamp, Set<String> classes) {}
+
+    /**
+     * A class that was loaded from a class path entry, with the checksum or modification time of its class file
+     */
+    private record External(File entry, long stamp) {}
+
+    /**
+     * The parts of a class file that determine which classes must be recompiled with it
+     */
+    record ClassFile(String name, String sourceFile, Set<String> references, Set<String> supertypes,
+            boolean constants) {}
+
+    /**
+     * The state of compiling a set of source directories to a destination directory
+     */
+    private class Unit {
+        private final File destDir;
+        private final Map<File, Source> sources = new HashMap<>();
+        private final Map<String, ClassFile> classes = new HashMap<>();
+        private final Map<String, File> owners = new HashMap<>();
+        private final Map<String, External> externals = new HashMap<>();
+        private final Set<String> unresolved = new HashSet<>();
+        private final Map<File, Long> jars = new HashMap<>();
+        private List<String> options;
+        private StandardJavaFileManager fileManager;
+        private boolean generated;
+
+        Unit(File destDir) {
+            this.destDir = destDir;
+        }
+
+        void compile(Javac task, Map<File, String> current, List<String> options) throws IOException {
+            List<File> classpath = classpath(options);
+            Set<String> changed = new HashSet<>();
+            boolean full = false;
+            if (this.options == null) {
+                read(current, classpath);
+            } else if (!options.equals(this.options)) {
+                full = true;
+            } else {
+                full = changedExternals(changed);
+            }
+
+            Set<File> stale = new HashSet<>();
+            List<File> removed = new ArrayList<>();
+            for (File file : current.keySet()) {
+                Source source = sources.get(file);
+                if (source == null || !source.stamp().equals(Stamp.of(file)) || missingClasses(source)) {
+                    stale.add(file);
+                    if (source != null) changed.addAll(source.classes());
+                }
+            }
+            for (Map.Entry<File, Source> entry : sources.entrySet()) {
+                if (!current.containsKey(entry.getKey())) {
+                    removed.add(entry.getKey());
+                    changed.addAll(entry.getValue().classes());
+                }
+            }
+            full |= (generated || constants(changed)) && !(stale.isEmpty() && removed.isEmpty() && changed.isEmpty());
+            if (full) {
+                stale.addAll(current.keySet());
+                removed.addAll(sources.keySet());
+                generated = false;
+            } else {
+                int count = stale.size();
+                dependents(changed, stale, current.keySet());
+                if (!stale.isEmpty()) {
+                    task.log(count + " changed and " + (stale.size() - count) + " dependent sources, "
+                            + removed.size() + " removed", Project.MSG_VERBOSE);
+                }
+            }
+            this.options = options;
+
+            for (File file : removed) discard(file);
+            List<File> list = new ArrayList<>();
+            for (File file : current.keySet()) {
+                if (stale.contains(file)) {
+                    discard(file);
+                    list.add(file);
+                }
+            }
+            if (list.isEmpty()) return;
+
+            task.log("Compiling " + list.size() + " source file" + (list.size() == 1 ? "" : "s") + " to " + destDir);
+            if (task.getListfiles()) {
+                list.forEach(file -> task.log(file.getAbsolutePath()));
+            }
+            Map<File, Stamp> stamps = new HashMap<>();
+            list.forEach(file -> stamps.put(file, Stamp.of(file)));
+            Map<File, Set<String>> outputs = new HashMap<>();
+            if (fileManager == null) {
+                fileManager = compiler.getStandardFileManager(null, null, null);
+            }
+            StringWriter out = new StringWriter();
+            boolean success;
+            try {
+                success = compiler.getTask(out, new Recorder(fileManager, outputs), null, options, null,
+                        fileManager.getJavaFileObjectsFromFiles(list)).call();
+            } catch (RuntimeException e) {
+                throw new BuildException(e, task.getLocation());
+            }
+            String messages = out.toString().strip();
+            if (!messages.isEmpty()) {
+                task.log(messages, Project.MSG_WARN);
+            }
+
+            if (success) {
+                List<ClassFile> compiled = new ArrayList<>();
+                for (File file : list) {
+                    Set<String> names = outputs.getOrDefault(file, Set.of());
+                    for (String name : names) {
+                        try (InputStream in = new FileInputStream(new File(destDir, name + ".class"))) {
+                            ClassFile cls = parse(in);
+                            classes.put(name, cls);
+                            owners.put(name, file);
+                            compiled.add(cls);
+                        }
+                    }
+                    sources.put(file, new Source(stamps.get(file), names));
+                }
+                track(compiled, classpath);
+            }
+
+            Object property = FileEngines.field(task, Javac.class, success ? "updatedProperty" : "errorProperty");
+            if (property instanceof String name) {
+                task.getProject().setNewProperty(name, "true");
+            }
+            if (!success) {
+                if (task.getFailonerror()) throw new BuildException(FAIL_MSG, task.getLocation());
+                task.log(FAIL_MSG, Project.MSG_ERR);
+            }
+        }
+
+        /**
+         * Reads the state of the destination directory, treating sources that are newer than their classes as stale
+         */
+        private void read(Map<File, String> current, List<File> classpath) throws IOException {
+            Map<String, File> paths = new HashMap<>();
+            current.forEach((file, path) -> paths.put(path, file));
+            Map<File, Set<String>> found = new HashMap<>();
+            Map<File, Long> oldest = new HashMap<>();
+
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(destDir.toPath())) {
+                files = walk.filter(p -> p.toString().endsWith(".class")).toList();
+            }
+            for (Path path : files) {
+                ClassFile cls;
+                try (InputStream in = Files.newInputStream(path)) {
+                    cls = parse(in);
+                } catch (IOException e) {
+                    continue;
+                }
+                int slash = cls.name().lastIndexOf('/');
+                String source = cls.sourceFile() != null ? cls.sourceFile() : cls.name().substring(slash + 1)
+                        .replaceFirst("\\$.*", "") + ".java";
+                File file = paths.get(cls.name().substring(0, slash + 1) + source);
+                if (file == null) continue;
+
+                classes.put(cls.name(), cls);
+                owners.put(cls.name(), file);
+                found.computeIfAbsent(file, f -> new HashSet<>()).add(cls.name());
+                oldest.merge(file, path.toFile().lastModified(), Math::min);
+            }
+            found.forEach((file, names) -> sources.put(file,
+                    new Source(oldest.get(file) >= file.lastModified() ? Stamp.of(file) : Stamp.STALE, names)));
+            track(classes.values(), classpath);
+        }
+
+        private boolean missingClasses(Source source) {
+            for (String name : source.classes()) {
+                if (!new File(destDir, name + ".class").isFile()) return true;
+            }
+            return false;
+        }
+
+        private boolean constants(Set<String> changed) {
+            for (String name : changed) {
+                ClassFile cls = classes.get(name);
+                if (cls != null && cls.constants()) return true;
+            }
+            return false;
+        }
+
+        /**
+         * Adds the sources of the subclasses of changed classes, and of the classes that refer to any of them
+         */
+        private void dependents(Set<String> changed, Set<File> stale, Set<File> current) {
+            Map<String, List<String>> referrers = new HashMap<>(), subclasses = new HashMap<>();
+            classes.forEach((name, cls) -> {
+                cls.references().forEach(r -> referrers.computeIfAbsent(r, k -> new ArrayList<>()).add(name));
+                cls.supertypes().forEach(s -> subclasses.computeIfAbsent(s, k -> new ArrayList<>()).add(name));
+            });
+            Set<String> affected = new HashSet<>(changed);
+            Deque<String> queue = new ArrayDeque<>(changed);
+            while (!queue.isEmpty()) {
+                for (String sub : subclasses.getOrDefault(queue.pop(), List.of())) {
+                    if (affected.add(sub)) queue.push(sub);
+                }
+            }
+            for (String name : affected) {
+                addSource(name, stale, current);
+                for (String referrer : referrers.getOrDefault(name, List.of())) {
+                    addSource(referrer, stale, current);
+                }
+            }
+        }
+
+        private void addSource(String name, Set<File> stale, Set<File> current) {
+            File file = owners.get(name);
+            if (file != null && current.contains(file)) stale.add(file);
+        }
+
+        /**
+         * Forgets a source and deletes the classes that were compiled from it
+         */
+        private void discard(File file) throws IOException {
+            Source source = sources.remove(file);
+            if (source == null) return;
+            for (String name : source.classes()) {
+                classes.remove(name);
+                owners.remove(name);
+                Files.deleteIfExists(new File(destDir, name + ".class").toPath());
+            }
+        }
+
+        private List<File> classpath(List<String> options) {
+            List<File> entries = new ArrayList<>();
+            int index = options.indexOf("-classpath");
+            if (index >= 0 && index + 1 < options.size()) {
+                for (String entry : options.get(index + 1).split(File.pathSeparator)) {
+                    File file = new File(entry).getAbsoluteFile();
+                    if (!entry.isEmpty() && !file.equals(destDir)) entries.add(file);
+                }
+            }
+            return entries;
+        }
+
+        /**
+         * Finds the classes loaded from the class path that have changed since they were last compiled against,
+         * closing the file manager if a jar has changed
+         * @param changed the set to add the names of the changed classes to
+         * @return {@literal true} if a changed class declares constants
+         */
+        private boolean changedExternals(Set<String> changed) throws IOException {
+            Map<File, List<String>> tracked = new HashMap<>();
+            externals.forEach((name, external) ->
+                    tracked.computeIfAbsent(external.entry(), e -> new ArrayList<>()).add(name));
+
+            boolean constants = false;
+            for (Map.Entry<File, List<String>> entry : tracked.entrySet()) {
+                File file = entry.getKey();
+                if (file.isFile()) {
+                    long modified = file.lastModified();
+                    Long stamp = jars.get(file);
+                    if (stamp != null && stamp == modified) continue;
+                    jars.put(file, modified);
+                    if (fileManager != null) {
+                        fileManager.close();
+                        fileManager = null;
+                    }
+                    try (ZipFile zip = new ZipFile(file)) {
+                        for (String name : entry.getValue()) {
+                            ZipEntry e = zip.getEntry(name + ".class");
+                            if (changed(name, file, e == null ? -1 : e.getCrc(), changed) && e != null) {
+                                try (InputStream in = zip.getInputStream(e)) {
+                                    constants |= parse(in).constants();
+                                }
+                            }
+                        }
+                    }
+                } else {
+                    for (String name : entry.getValue()) {
+                        File cls = new File(file, name + ".class");
+                        if (changed(name, file, cls.isFile() ? cls.lastModified() : -1, changed) && cls.isFile()) {
+                            try (InputStream in = new FileInputStream(cls)) {
+                                constants |= parse(in).constants();
+                            }
+                        }
+                    }
+                }
+            }
+            return constants;
+        }
+
+        private boolean changed(String name, File entry, long stamp, Set<String> changed) {
+            if (externals.get(name).stamp() == stamp) return false;
+            externals.put(name, new External(entry, stamp));
+            changed.add(name);
+            return true;
+        }
+
+        /**
+         * Finds the class path entries that supply the classes referred to by newly compiled classes
+         */
+        private void track(Collection<ClassFile> compiled, List<File> classpath) throws IOException {
+            Set<String> names = new HashSet<>();
+            for (ClassFile cls : compiled) {
+                for (String name : cls.references()) {
+                    if (!classes.containsKey(name) && !externals.containsKey(name) && !unresolved.contains(name)) {
+                        names.add(name);
+                    }
+                }
+            }
+            for (File entry : classpath) {
+                if (entry.isFile()) {
+                    jars.putIfAbsent(entry, entry.lastModified());
+                    if (names.isEmpty()) continue;
+                    try (ZipFile zip = new ZipFile(entry)) {
+                        for (Iterator<String> i = names.iterator(); i.hasNext();) {
+                            String name = i.next();
+                            ZipEntry e = zip.getEntry(name + ".class");
+                            if (e != null) {
+                                externals.put(name, new External(entry, e.getCrc()));
+                                i.remove();
+                            }
+                        }
+                    } catch (ZipException e) {
+                        // not a jar, so the compiler ignores it too
+                    }
+                } else if (entry.isDirectory()) {
+                    for (Iterator<String> i = names.iterator(); i.hasNext();) {
+                        String name = i.next();
+                        File cls = new File(entry, name + ".class");
+                        if (cls.isFile()) {
+                            externals.put(name, new External(entry, cls.lastModified()));
+                            i.remove();
+                        }
+                    }
+                }
+            }
+            unresolved.addAll(names);
+        }
+
+        /**
+         * Records the classes compiled from each source, and whether any other files were generated
+         */
+        private class Recorder extends ForwardingJavaFileManager<StandardJavaFileManager> {
+            private final Map<File, Set<String>> outputs;
+
+            Recorder(StandardJavaFileManager fileManager, Map<File, Set<String>> outputs) {
+                super(fileManager);
+                this.outputs = outputs;
+            }
+
+            @Override public JavaFileObject getJavaFileForOutput(Location location, String className,
+                    JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+                if (kind == JavaFileObject.Kind.CLASS && location == StandardLocation.CLASS_OUTPUT
+                        && sibling != null && "file".equals(sibling.toUri().getScheme())) {
+                    outputs.computeIfAbsent(Paths.get(sibling.toUri()).toFile(), f -> new LinkedHashSet<>())
+                            .add(className.replace('.', '/'));
+                } else if (location != StandardLocation.NATIVE_HEADER_OUTPUT) {
+                    generated = true;
+                }
+                return super.getJavaFileForOutput(location, className, kind, sibling);
+            }
+
+            @Override public FileObject getFileForOutput(Location location, String packageName, String relativeName,
+                    FileObject sibling) throws IOException {
+                generated = true;
+                return super.getFileForOutput(location, packageName, relativeName, sibling);
+            }
+        }
+    }
+
+    /**
+     * Reads the name, source file, supertypes and referenced classes of a class file
+     * @param stream the class file contents
+     * @return the class file
+     * @throws IOException if the stream cannot be read or is not a class file
+     */
+    static ClassFile parse(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != 0xCAFEBABE) throw new IOException("Not a class file");
+        in.skipBytes(4);
+
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        int[] classes = new int[count];
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1 -> utf8[i] = in.readUTF();
+                case 7 -> classes[i] = in.readUnsignedShort();
+                case 8, 16, 19, 20 -> in.skipBytes(2);
+                case 15 -> in.skipBytes(3);
+                case 3, 4, 9, 10, 11, 12, 17, 18 -> in.skipBytes(4);
+                case 5, 6 -> {
+                    in.skipBytes(8);
+                    i++;
+                }
+                default -> throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+
+        in.skipBytes(2);
+        String name = utf8[classes[in.readUnsignedShort()]];
+        Set<String> supertypes = new HashSet<>();
+        int superclass = in.readUnsignedShort();
+        if (superclass != 0) supertypes.add(utf8[classes[superclass]]);
+        for (int i = in.readUnsignedShort(); i > 0; i--) {
+            supertypes.add(utf8[classes[in.readUnsignedShort()]]);
+        }
+
+        boolean constants = false;
+        for (int i = in.readUnsignedShort(); i > 0; i--) {
+            in.skipBytes(6);
+            for (int j = in.readUnsignedShort(); j > 0; j--) {
+                constants |= "ConstantValue".equals(utf8[in.readUnsignedShort()]);
+                in.skipBytes(in.readInt());
+            }
+        }
+        for (int i = in.readUnsignedShort(); i > 0; i--) {
+            in.skipBytes(6);
+            for (int j = in.readUnsignedShort(); j > 0; j--) {
+                in.skipBytes(2);
+                in.skipBytes(in.readInt());
+            }
+        }
+        String sourceFile = null;
+        for (int i = in.readUnsignedShort(); i > 0; i--) {
+            String attribute = utf8[in.readUnsignedShort()];
+            int length = in.readInt();
+            if ("SourceFile".equals(attribute)) {
+                sourceFile = utf8[in.readUnsignedShort()];
+            } else {
+                in.skipBytes(length);
+            }
+        }
+
+        Set<String> references = new HashSet<>();
+        for (int i = 1; i < count; i++) {
+            if (classes[i] != 0 && !utf8[classes[i]].startsWith("[")) {
+                references.add(utf8[classes[i]]);
+            } else if (utf8[i] != null) {
+                for (Matcher m = DESCRIPTOR.matcher(utf8[i]); m.find();) {
+                    references.add(m.group(1));
+                }
+            }
+        }
+        references.remove(name);
+        return new ClassFile(name, sourceFile, references, supertypes, constants);
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+/**
+ * A directory scanner that lists directories in parallel on the fork/join common pool.
+ * <p/>
+ * Names are matched with the include and exclude patterns by the {@link DirectoryScanner} methods,
+ * and subdirectories are only entered if they {@link #couldHoldIncluded(String) could hold} included names
+ * and their contents are not excluded by a pattern such as {@code **}{@code /.git/**},
+ * so the included files and directories are the same as Ant's, and in the same order.
+ * Trees that contain symbolic links, scanners with selectors, directories that cannot be read,
+ * and include patterns that all begin with a fixed path, such as {@code src/**},
+ * are scanned by Ant's sequential implementation, as are the lists of names that were not included,
+ * which are only built when they are asked for.
+ *
+ * @author gilesjb
+ * @see ParallelFileSet
+ */
+public class ParallelDirectoryScanner extends DirectoryScanner {
+
+    /**
+     * Discards the patterns that {@link DirectoryScanner} prepares for matching, as its own scan does when it ends
+     */
+    private static final MethodHandle CLEAR_CACHES;
+
+    static {
+        MethodHandle clear;
+        try {
+            clear = MethodHandles.privateLookupIn(DirectoryScanner.class, MethodHandles.lookup())
+                    .findVirtual(DirectoryScanner.class, "clearCaches", MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            clear = null;
+        }
+        CLEAR_CACHES = clear;
+    }
+
+    /**
+     * Thrown to abandon a parallel scan that has found something only the sequential scan handles
+     */
+    private static class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * A directory that was listed by a parallel scan, and its modification time before it was listed
+     */
+    record Directory(Path path, FileTime modified) {}
+
+    /**
+     * The results of scanning one directory and its subdirectories, in Ant's order
+     */
+    private static class Result {
+        final List<String> files = new ArrayList<>(), dirs = new ArrayList<>();
+        final List<Directory> listed = new ArrayList<>();
+        boolean everything = true;
+
+        void add(Result sub) {
+            files.addAll(sub.files);
+            dirs.addAll(sub.dirs);
+            listed.addAll(sub.listed);
+            everything &= sub.everything;
+        }
+    }
+
+    private List<Directory> listed;
+
+    @Override public void scan() throws IllegalStateException {
+        File base;
+        FileTime modified;
+        boolean nullIncludes, nullExcludes;
+        synchronized (this) {
+            listed = null;
+            base = basedir;
+            if (CLEAR_CACHES == null || base == null || selectors != null && selectors.length > 0
+                    || !scansFromBase() || Files.isSymbolicLink(base.toPath()) || !base.isDirectory()) {
+                super.scan();
+                return;
+            }
+            try {
+                modified = Files.getLastModifiedTime(base.toPath(), LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                super.scan();
+                return;
+            }
+            clearResults();
+            nullIncludes = includes == null;
+            nullExcludes = excludes == null;
+            if (nullIncludes) includes = new String[] {SelectorUtils.DEEP_TREE_MATCH};
+            if (nullExcludes) excludes = new String[0];
+        }
+
+        Result result;
+        boolean root = false;
+        try {
+            // the patterns are only read while scanning, and this scanner's lock must not be held
+            // because the matching methods synchronize on it
+            result = ForkJoinPool.commonPool().invoke(new Scan(base.toPath(), modified, ""));
+            root = isIncluded("") && !isExcluded("");
+        } catch (Unsupported e) {
+            result = null;
+        } finally {
+            synchronized (this) {
+                if (nullIncludes) includes = null;
+                if (nullExcludes) excludes = null;
+                clearCaches();
+            }
+        }
+
+        synchronized (this) {
+            if (result == null) {
+                super.scan();
+                return;
+            }
+            if (root) dirsIncluded.add("");
+            filesIncluded.addAll(result.files);
+            dirsIncluded.addAll(result.dirs);
+            everythingIncluded &= result.everything;
+            haveSlowResults = false;
+            listed = result.listed;
+        }
+    }
+
+    /**
+     * Gets the directories that the last scan listed, if it was a parallel scan
+     * @return the directories, or {@literal null} if Ant's sequential scan was used
+     */
+    synchronized List<Directory> listed() {
+        return listed;
+    }
+
+    /**
+     * Gets the settings that determine the results of a parallel scan
+     * @return the key, or {@literal null} if the scanner has selectors
+     */
+    synchronized AntScanCache.Key key() {
+        if (basedir == null || selectors != null && selectors.length > 0) return null;
+        return new AntScanCache.Key(basedir.getAbsoluteFile().toPath(),
+                includes == null ? null : Arrays.asList(includes.clone()),
+                excludes == null ? null : Arrays.asList(excludes.clone()),
+                isCaseSensitive(), isFollowSymlinks());
+    }
+
+    /**
+     * Determines whether Ant would scan the whole base directory,
+     * rather than only the subdirectories named by the leading parts of the include patterns
+     */
+    private boolean scansFromBase() {
+        if (includes == null) return true;
+        for (String pattern : includes) {
+            if (SelectorUtils.rtrimWildcardTokens(pattern).isEmpty()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Determines whether an exclude pattern ending in {@code **} excludes everything below a directory,
+     * in which case Ant does not enter it
+     */
+    private boolean contentsExcluded(String name) {
+        String deep = File.separator + SelectorUtils.DEEP_TREE_MATCH;
+        for (String pattern : excludes) {
+            if (pattern.endsWith(deep) && SelectorUtils.matchPath(
+                    pattern.substring(0, pattern.length() - deep.length()), name, isCaseSensitive())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void clearCaches() {
+        try {
+            CLEAR_CACHES.invokeExact((DirectoryScanner) this);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Builds the lists of names that were not included, excluded or deselected by scanning again sequentially
+     */
+    @Override protected void slowScan() {
+        synchronized (this) {
+            if (haveSlowResults) return;
+            super.scan();
+            super.slowScan();
+        }
+    }
+
+    /**
+     * An included name found while scanning a directory
+     */
+    private record Name(String name, boolean dir) {}
+
+    private class Scan extends RecursiveTask<Result> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final FileTime modified;
+        private final String path;
+
+        Scan(Path dir, FileTime modified, String path) {
+            this.dir = dir;
+            this.modified = modified;
+            this.path = path;
+        }
+
+        @Override protected Result compute() {
+            Result result = new Result();
+            result.listed.add(new Directory(dir, modified));
+            List<Object> entries = new ArrayList<>(); // included names and subdirectory scans, in listing order
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path child : stream) {
+                    BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                    if (attrs.isSymbolicLink() || attrs.isDirectory() && !Files.isReadable(child)) {
+                        throw new Unsupported();
+                    }
+
+                    String name = path + child.getFileName();
+                    if (isIncluded(name) && !isExcluded(name)) {
+                        entries.add(new Name(name, attrs.isDirectory()));
+                    } else {
+                        result.everything = false;
+                    }
+                    if (attrs.isDirectory() && couldHoldIncluded(name) && !contentsExcluded(name)) {
+                        Scan sub = new Scan(child, attrs.lastModifiedTime(), name + File.separatorChar);
+                        sub.fork();
+                        entries.add(sub);
+                    }
+                }
+            } catch (IOException e) {
+                throw new Unsupported();
+            }
+
+            for (Object entry : entries) {
+                if (entry instanceof Name name) {
+                    (name.dir() ? result.dirs : result.files).add(name.name());
+                } else {
+                    result.add(((Scan) entry).join());
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import java.io.File;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+
+/**
+ * A file set that is scanned by a {@link ParallelDirectoryScanner}.
+ * The generated facades create these wherever Ant would create a plain {@link FileSet}.
+ * If the project has a {@link AntScanCache scan cache}, the results of earlier scans are reused.
+ *
+ * @author gilesjb
+ */
+public class ParallelFileSet extends FileSet {
+
+    @Override public DirectoryScanner getDirectoryScanner(Project p) {
+        if (isReference()) {
+            return getRef(p).getDirectoryScanner(p);
+        }
+        dieOnCircularReference();
+        ParallelDirectoryScanner ds;
+        synchronized (this) {
+            File dir = getDir(p);
+            if (dir == null) {
+                throw new BuildException("No directory specified for %s.", getDataTypeName());
+            }
+            if (!dir.exists() && getErrorOnMissingDir()) {
+                throw new BuildException(dir.getAbsolutePath() + DirectoryScanner.DOES_NOT_EXIST_POSTFIX);
+            }
+            if (!dir.isDirectory() && dir.exists()) {
+                throw new BuildException("%s is not a directory.", dir.getAbsolutePath());
+            }
+            ds = new ParallelDirectoryScanner();
+            setupDirectoryScanner(ds, p);
+            ds.setFollowSymlinks(isFollowSymlinks());
+            ds.setErrorOnMissingDir(getErrorOnMissingDir());
+            ds.setMaxLevelsOfSymlinks(getMaxLevelsOfSymlinks());
+        }
+
+        AntScanCache cache = p.getReference(AntScanCache.REFERENCE);
+        AntScanCache.Key key = cache == null ? null : ds.key();
+        if (key != null) {
+            DirectoryScanner cached = cache.get(key);
+            if (cached != null) return cached;
+        }
+        ds.scan();
+        if (key != null) {
+            cache.put(key, ds);
+        }
+        return ds;
+    }
+}
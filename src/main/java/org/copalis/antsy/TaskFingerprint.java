@@ -0,0 +1,258 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Location;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectComponent;
+import org.apache.tools.ant.RuntimeConfigurable;
+import org.apache.tools.ant.Target;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.EnumeratedAttribute;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.ResourceCollection;
+import org.apache.tools.ant.types.resources.FileProvider;
+
+/**
+ * The configuration and input files of an Ant task, found by examining the fields of the configured task.
+ * <p/>
+ * Values of simple types are recorded as attributes.
+ * Files named by attributes, and files in resource collections such as filesets and paths, are recorded as inputs,
+ * unless they are declared outputs or lie inside a declared output directory.
+ * Directories in resource collections, such as source and class path directories, contribute the files under them.
+ * Nested Ant objects are examined in the same way.
+ * Paths under the project base directory are recorded relative to it,
+ * so that identical tasks in different workspaces have the same fingerprint.
+ *
+ * @author gilesjb
+ */
+class TaskFingerprint {
+
+    private static final int MAX_DEPTH = 4;
+
+    private static final List<Class<?>> IGNORED = List.of(Project.class, Target.class, Task.class,
+            RuntimeConfigurable.class, Location.class, BuildListener.class,
+            InputStream.class, OutputStream.class, Thread.class);
+
+    private final File basedir;
+    private final List<File> outputs;
+    private final MessageDigest attributes = FileStateIndex.digest();
+    private final Set<File> inputs = new TreeSet<>();
+    private final Map<Object, Object> visited = new IdentityHashMap<>();
+    private final String key;
+
+    /**
+     * Examines a configured task
+     * @param task the Ant task, before it has been executed
+     * @param outputs the files and directories written by the task
+     */
+    TaskFingerprint(Task task, File... outputs) {
+        this.basedir = task.getProject().getBaseDir().getAbsoluteFile();
+        this.outputs = Stream.of(outputs).map(File::getAbsoluteFile).collect(Collectors.toList());
+
+        attribute("class", task.getClass().getName());
+        attribute("name", task.getTaskName());
+        for (File output : this.outputs) {
+            attribute("output", relative(output));
+        }
+        visited.put(task, task);
+        fields("", task, 0);
+        key = task.getTaskName() + ':' + HexFormat.of().formatHex(attributes.digest(), 0, 12);
+    }
+
+    /**
+     * Gets a key that identifies the task's configuration
+     * @return a string that is the same for tasks with identical attributes
+     */
+    String key() {
+        return key;
+    }
+
+    /**
+     * Computes a hash of the current state of the task's input and output files
+     * @param index the index that caches file content hashes
+     * @return the hash
+     */
+    long state(FileStateIndex index) {
+        MessageDigest digest = FileStateIndex.digest();
+        inputs(digest, index);
+        for (File output : outputs) {
+            digest.update((byte) 0);
+            if (output.isDirectory()) {
+                try (Stream<Path> files = Files.walk(output.toPath())) {
+                    files.filter(Files::isRegularFile).sorted().forEach(path -> update(digest, path.toFile(), index));
+                } catch (IOException e) {
+                    throw new BuildException("Cannot read " + output, e);
+                }
+            } else {
+                update(digest, output, index);
+            }
+        }
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    /**
+     * Computes a hash of the task's configuration and the current content of its input files
+     * @param index the index that caches file content hashes
+     * @return a string that is the same for identical tasks with identical inputs
+     */
+    String inputs(FileStateIndex index) {
+        MessageDigest digest = FileStateIndex.digest();
+        digest.update(key.getBytes(StandardCharsets.UTF_8));
+        inputs(digest, index);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private void inputs(MessageDigest digest, FileStateIndex index) {
+        for (File input : inputs) {
+            update(digest, input, index);
+        }
+    }
+
+    /**
+     * Gets the declared outputs
+     * @return the absolute output files and directories
+     */
+    List<File> outputs() {
+        return outputs;
+    }
+
+    private void update(MessageDigest digest, File file, FileStateIndex index) {
+        digest.update(relative(file).getBytes(StandardCharsets.UTF_8));
+        digest.update(ByteBuffer.allocate(8).putLong(index.hash(file)).array());
+    }
+
+    private void attribute(String name, Object value) {
+        attributes.update((name + '=' + value + '\n').getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void input(File file) {
+        File abs = file.getAbsoluteFile();
+        for (File output : outputs) {
+            if (abs.toPath().startsWith(output.toPath())) return;
+        }
+        inputs.add(abs);
+    }
+
+    /**
+     * Records the files under a directory of a resource collection, such as a source or class path directory
+     */
+    private void directory(File dir) {
+        try (Stream<Path> files = Files.walk(dir.toPath())) {
+            files.filter(Files::isRegularFile).forEach(path -> input(path.toFile()));
+        } catch (IOException e) {
+            throw new BuildException("Cannot read " + dir, e);
+        }
+    }
+
+    private String relative(File file) {
+        Path path = file.getAbsoluteFile().toPath();
+        return path.startsWith(basedir.toPath()) ? basedir.toPath().relativize(path).toString() : path.toString();
+    }
+
+    private void fields(String prefix, Object obj, int depth) {
+        for (Class<?> c = obj.getClass();
+                c != null && c != Task.class && c != ProjectComponent.class && c != Object.class;
+                c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if ((field.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) != 0) continue;
+                try {
+                    field.setAccessible(true);
+                    value(prefix + field.getName(), field.get(obj), depth);
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    attribute(prefix + field.getName(), "?");
+                }
+            }
+        }
+    }
+
+    private void value(String name, Object value, int depth) {
+        if (value == null) {
+            return;
+        } else if (value instanceof File file) {
+            attribute(name, relative(file));
+            if (file.isFile()) input(file);
+        } else if (value instanceof Number || value instanceof Boolean || value instanceof Character
+                || value instanceof CharSequence || value instanceof Enum) {
+            attribute(name, value);
+        } else if (value instanceof EnumeratedAttribute ea) {
+            attribute(name, ea.getValue());
+        } else if (value instanceof ResourceCollection rc) {
+            attribute(name, rc.getClass().getName());
+            for (Resource resource : rc) {
+                FileProvider fp = resource.as(FileProvider.class);
+                if (fp != null) {
+                    File file = fp.getFile();
+                    attribute(name, relative(file));
+                    if (file.isFile()) {
+                        input(file);
+                    } else if (file.isDirectory()) {
+                        directory(file);
+                    }
+                } else {
+                    attribute(name, resource.getName() + '@' + resource.getLastModified() + ':' + resource.getSize());
+                }
+            }
+        } else if (value instanceof Collection<?> coll) {
+            int i = 0;
+            for (Object element : coll) {
+                value(name + '[' + i++ + ']', element, depth);
+            }
+        } else if (value instanceof Map<?, ?> map) {
+            Map<String, Object> sorted = new TreeMap<>();
+            map.forEach((k, v) -> sorted.put(String.valueOf(k), v));
+            sorted.forEach((k, v) -> value(name + '[' + k + ']', v, depth));
+        } else if (value.getClass().isArray()) {
+            for (int i = 0, n = Array.getLength(value); i < n; i++) {
+                value(name + '[' + i + ']', Array.get(value, i), depth);
+            }
+        } else if (IGNORED.stream().anyMatch(type -> type.isInstance(value))) {
+            return;
+        } else if (value.getClass().getName().startsWith("org.apache.tools.ant") && depth < MAX_DEPTH) {
+            if (visited.put(value, value) == null) {
+                attribute(name, value.getClass().getName());
+                fields(name + '.', value, depth + 1);
+            }
+        } else {
+            attribute(name, value.getClass().getName());
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * Captures the standard output and error of each running task, and logs it as one block when the task finishes.
+ * <p/>
+ * Output is collected in a reusable buffer belonging to the thread that runs the task,
+ * so concurrent tasks do not share any state until their blocks are logged.
+ * Tasks that run other tasks on the same thread get their own section of the buffer.
+ * Output written by threads that are not running a task goes straight to the original streams.
+ *
+ * @author gilesjb
+ * @see AntProject#captureStreams()
+ */
+class TaskOutputCapture implements BuildListener {
+
+    /**
+     * Buffers larger than this are discarded after use rather than kept for the next task
+     */
+    private static final int RETAINED = 1 << 16;
+
+    private final Project project;
+    private final Capture out, err;
+
+    TaskOutputCapture(Project project, PrintStream out, PrintStream err) {
+        this.project = project;
+        this.out = new Capture(out);
+        this.err = new Capture(err);
+    }
+
+    PrintStream out() {
+        return new PrintStream(out, true);
+    }
+
+    PrintStream err() {
+        return new PrintStream(err, true);
+    }
+
+    @Override public void taskStarted(BuildEvent event) {
+        out.buffer.get().push();
+        err.buffer.get().push();
+    }
+
+    @Override public void taskFinished(BuildEvent event) {
+        log(event.getTask(), out.buffer.get().pop(), Project.MSG_INFO);
+        log(event.getTask(), err.buffer.get().pop(), Project.MSG_WARN);
+    }
+
+    private void log(Task task, String block, int priority) {
+        if (block != null) project.log(task, block, priority);
+    }
+
+    @Override public void buildStarted(BuildEvent event) {
+    }
+
+    @Override public void buildFinished(BuildEvent event) {
+    }
+
+    @Override public void targetStarted(BuildEvent event) {
+    }
+
+    @Override public void targetFinished(BuildEvent event) {
+    }
+
+    @Override public void messageLogged(BuildEvent event) {
+    }
+
+    /**
+     * An output stream that writes to the current thread's buffer while it is running a task
+     */
+    private static class Capture extends OutputStream {
+        final PrintStream original;
+        final ThreadLocal<Buffer> buffer = ThreadLocal.withInitial(Buffer::new);
+
+        Capture(PrintStream original) {
+            this.original = original;
+        }
+
+        @Override public void write(int b) {
+            Buffer buf = buffer.get();
+            if (buf.depth == 0) {
+                original.write(b);
+            } else {
+                buf.append(b);
+            }
+        }
+
+        @Override public void write(byte[] b, int off, int len) {
+            Buffer buf = buffer.get();
+            if (buf.depth == 0) {
+                original.write(b, off, len);
+            } else {
+                buf.append(b, off, len);
+            }
+        }
+
+        @Override public void flush() throws IOException {
+            if (buffer.get().depth == 0) original.flush();
+        }
+    }
+
+    /**
+     * A growable byte buffer, with a mark for the start of each running task's output
+     */
+    private static class Buffer {
+        byte[] bytes = new byte[256];
+        int size = 0;
+        int[] marks = new int[4];
+        int depth = 0;
+
+        void append(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        void append(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, bytes, size, len);
+            size += len;
+        }
+
+        private void ensure(int len) {
+            if (size + len > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + len));
+            }
+        }
+
+        void push() {
+            if (depth == marks.length) marks = Arrays.copyOf(marks, depth * 2);
+            marks[depth++] = size;
+        }
+
+        /**
+         * Removes the output of the task that is finishing
+         * @return the output, without a trailing line break, or {@literal null} if there was none
+         */
+        String pop() {
+            if (depth == 0) return null;
+            int start = marks[--depth], end = size;
+            size = start;
+            while (end > start && (bytes[end - 1] == '\n' || bytes[end - 1] == '\r')) end--;
+            String block = end > start ? new String(bytes, start, end - start) : null;
+            if (size == 0 && bytes.length > RETAINED) bytes = new byte[256];
+            return block;
+        }
+    }
+}
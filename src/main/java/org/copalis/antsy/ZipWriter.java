@@ -0,0 +1,395 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zip archive, compressing entries concurrently.
+ * <p/>
+ * Files are read in the order they are added, and split into chunks that are compressed as separate tasks,
+ * each chunk of a large file using the end of the previous chunk as its dictionary, as pigz does,
+ * so that the chunks join into a single deflate stream.
+ * The compressed chunks are written in order as they complete, and the number of chunks in memory is bounded.
+ * Local headers are written before the data and updated when the sizes are known,
+ * and zip64 extensions are used for entries, offsets and entry counts that need them.
+ *
+ * @author gilesjb
+ */
+final class ZipWriter implements Closeable {
+
+    private static final int CHUNK = 1 << 20, DICTIONARY = 1 << 15;
+    private static final long LIMIT = 0xFFFFFFFFL;
+    /** Entries at least this large get zip64 sizes, leaving room for incompressible data to grow */
+    private static final long ZIP64_SIZE = 0xF0000000L;
+    private static final int STORED = 0, DEFLATED = 8, UTF8_FLAG = 1 << 11, UNIX = 3;
+    private static final byte[] EMPTY = {};
+
+    private static final ThreadLocal<Deflater[]> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater[11]);
+
+    private static class Entry {
+        final byte[] name, extra;
+        final int method, mode, dosTime;
+        final boolean directory, zip64;
+        long crc, size, csize, offset;
+
+        Entry(byte[] name, byte[] extra, int method, int mode, long time, boolean directory, boolean zip64) {
+            this.name = name;
+            this.extra = extra;
+            this.method = method;
+            this.mode = mode;
+            this.dosTime = dosTime(time);
+            this.directory = directory;
+            this.zip64 = zip64;
+        }
+    }
+
+    /**
+     * Compressed data, and the checksum and size of the uncompressed data
+     */
+    private record Chunk(byte[] data, int length, long crc, long size) {}
+
+    /**
+     * A chunk of an entry that is being compressed
+     */
+    private record Segment(Entry entry, CompletableFuture<Chunk> chunk, boolean first, boolean last) {}
+
+    private final FileChannel channel;
+    private final Executor executor;
+    private final Charset charset;
+    private final boolean utf8Flag, zip64;
+    private final int level, maxPending;
+    private final Deque<Segment> pending = new ArrayDeque<>();
+    private final List<Entry> entries = new ArrayList<>();
+    private long position;
+
+    /**
+     * Creates a zip writer
+     * @param file the archive to create or replace
+     * @param executor the executor that compresses chunks
+     * @param parallelism the number of chunks that are compressed at once
+     * @param level the compression level, or -1 for the default, or {@literal null} to store entries uncompressed
+     * @param charset the encoding of entry names
+     * @param utf8Flag whether to mark names as UTF-8
+     * @param zip64 whether zip64 extensions may be used, otherwise archives that need them fail
+     * @throws IOException if the file cannot be created
+     */
+    ZipWriter(File file, Executor executor, int parallelism, Integer level, Charset charset, boolean utf8Flag,
+            boolean zip64) throws IOException {
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.executor = executor;
+        this.level = level == null ? Integer.MIN_VALUE : level;
+        this.maxPending = 2 * parallelism + 2;
+        this.charset = charset;
+        this.utf8Flag = utf8Flag;
+        this.zip64 = zip64;
+    }
+
+    /**
+     * Adds a directory entry
+     * @param name the entry name, ending with {@code /}
+     * @param time the modification time
+     * @param mode the unix mode, including the file type
+     * @param extra extra field data for the local and central headers
+     */
+    void directory(String name, long time, int mode, byte[] extra) throws IOException {
+        Entry entry = new Entry(name.getBytes(charset), extra, STORED, mode, time, true, false);
+        submit(new Segment(entry, CompletableFuture.completedFuture(new Chunk(EMPTY, 0, 0, 0)), true, true));
+    }
+
+    /**
+     * Adds a file entry with data from memory
+     * @param name the entry name
+     * @param data the data
+     * @param time the modification time
+     * @param mode the unix mode, including the file type
+     */
+    void file(String name, byte[] data, long time, int mode) throws IOException {
+        Entry entry = new Entry(name.getBytes(charset), EMPTY, method(), mode, time, false, false);
+        submit(new Segment(entry, compress(data, data.length, null, true, true), true, true));
+    }
+
+    /**
+     * Adds a file entry with data from a file
+     * @param name the entry name
+     * @param file the file
+     * @param time the modification time
+     * @param mode the unix mode, including the file type
+     */
+    void file(String name, File file, long time, int mode) throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath())) {
+            long size = in.size();
+            if (size >= LIMIT && !zip64) throw new IOException(name + "'s size exceeds the limit of 4GByte.");
+            Entry entry = new Entry(name.getBytes(charset), EMPTY, method(), mode, time, false, size >= ZIP64_SIZE);
+            CRC32 crc = new CRC32();
+            byte[] dictionary = null;
+            long offset = 0;
+            for (boolean first = true;; first = false) {
+                byte[] buffer = new byte[(int) Math.min(CHUNK, Math.max(size - offset, 0))];
+                int length = read(in, buffer);
+                offset += length;
+                boolean last = length < CHUNK || offset >= size;
+                if (first && last) {
+                    submit(new Segment(entry, compress(buffer, length, null, true, true), true, true));
+                    return;
+                }
+                crc.update(buffer, 0, length);
+                if (last) {
+                    entry.crc = crc.getValue();
+                    entry.size = offset;
+                }
+                submit(new Segment(entry, compress(buffer, length, dictionary, false, last), first, last));
+                if (last) return;
+                dictionary = Arrays.copyOfRange(buffer, length - DICTIONARY, length);
+            }
+        }
+    }
+
+    private static int read(FileChannel in, byte[] buffer) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(buffer);
+        while (buf.hasRemaining() && in.read(buf) >= 0);
+        return buf.position();
+    }
+
+    private int method() {
+        return level == Integer.MIN_VALUE ? STORED : DEFLATED;
+    }
+
+    /**
+     * Compresses a chunk on the executor
+     * @param whole whether the chunk is a whole entry, whose checksum is computed with it
+     */
+    private CompletableFuture<Chunk> compress(byte[] data, int length, byte[] dictionary, boolean whole, boolean last) {
+        return CompletableFuture.supplyAsync(() -> {
+            long crc = 0;
+            if (whole) {
+                CRC32 checksum = new CRC32();
+                checksum.update(data, 0, length);
+                crc = checksum.getValue();
+            }
+            if (level == Integer.MIN_VALUE) return new Chunk(data, length, crc, length);
+
+            Deflater[] deflaters = DEFLATERS.get();
+            int index = level + 1; // levels -1 (the default) to 9
+            Deflater deflater = deflaters[index];
+            if (deflater == null) {
+                deflater = deflaters[index] = new Deflater(level, true);
+            }
+            deflater.reset();
+            if (dictionary != null) deflater.setDictionary(dictionary);
+            deflater.setInput(data, 0, length);
+            if (last) deflater.finish();
+
+            byte[] out = new byte[length + (length >> 8) + 64];
+            int size = 0;
+            while (true) {
+                if (size == out.length) out = Arrays.copyOf(out, out.length * 2);
+                size += last ? deflater.deflate(out, size, out.length - size)
+                        : deflater.deflate(out, size, out.length - size, Deflater.SYNC_FLUSH);
+                if (last ? deflater.finished() : size < out.length) break;
+            }
+            return new Chunk(out, size, crc, length);
+        }, executor);
+    }
+
+    private void submit(Segment segment) throws IOException {
+        while (pending.size() >= maxPending) {
+            writeNext();
+        }
+        pending.add(segment);
+        while (!pending.isEmpty() && pending.peek().chunk().isDone()) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        Segment segment = pending.poll();
+        Chunk chunk;
+        try {
+            chunk = segment.chunk().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException io) throw io.getCause();
+            throw e;
+        }
+        Entry entry = segment.entry();
+        if (segment.first()) {
+            if (position >= LIMIT && !zip64) throw new IOException("archive's size exceeds the limit of 4GByte.");
+            entry.offset = position;
+            if (segment.last()) {
+                entry.crc = chunk.crc();
+                entry.size = chunk.size();
+                entry.csize = chunk.length();
+            }
+            entries.add(entry);
+            position += write(localHeader(entry), position);
+        }
+        if (!segment.first() || !segment.last()) entry.csize += chunk.length();
+        position += write(ByteBuffer.wrap(chunk.data(), 0, chunk.length()), position);
+        if (entry.csize >= LIMIT && !entry.zip64) {
+            throw new IOException(new String(entry.name, charset) + "'s size exceeds the limit of 4GByte.");
+        }
+        if (segment.last() && !segment.first()) {
+            write(sizes(entry), entry.offset + 14);
+            if (entry.zip64) {
+                ByteBuffer sizes = buffer(16).putLong(entry.size).putLong(entry.csize).flip();
+                write(sizes, entry.offset + 30 + entry.name.length + 4);
+            }
+        }
+    }
+
+    private int write(ByteBuffer buffer, long at) throws IOException {
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            at += channel.write(buffer, at);
+        }
+        return length;
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private int flags() {
+        return utf8Flag ? UTF8_FLAG : 0;
+    }
+
+    private static int version(Entry entry) {
+        return entry.zip64 ? 45 : entry.directory ? 10 : 20;
+    }
+
+    private ByteBuffer localHeader(Entry entry) {
+        int extra = entry.extra.length + (entry.zip64 ? 20 : 0);
+        ByteBuffer buf = buffer(30 + entry.name.length + extra);
+        buf.putInt(0x04034b50).putShort((short) version(entry)).putShort((short) flags())
+                .putShort((short) entry.method).putInt(entry.dosTime);
+        buf.put(sizes(entry));
+        buf.putShort((short) entry.name.length).putShort((short) extra).put(entry.name);
+        if (entry.zip64) {
+            buf.putShort((short) 1).putShort((short) 16).putLong(entry.size).putLong(entry.csize);
+        }
+        return buf.put(entry.extra).flip();
+    }
+
+    /**
+     * The checksum and sizes fields of a local header
+     */
+    private static ByteBuffer sizes(Entry entry) {
+        ByteBuffer buf = buffer(12).putInt((int) entry.crc);
+        if (entry.zip64) {
+            buf.putInt((int) LIMIT).putInt((int) LIMIT);
+        } else {
+            buf.putInt((int) entry.csize).putInt((int) entry.size);
+        }
+        return buf.flip();
+    }
+
+    private ByteBuffer centralHeader(Entry entry) {
+        boolean sizes64 = entry.zip64 || entry.csize >= LIMIT || entry.size >= LIMIT, offset64 = entry.offset >= LIMIT;
+        int zip64 = (sizes64 ? 16 : 0) + (offset64 ? 8 : 0);
+        int extra = entry.extra.length + (zip64 > 0 ? 4 + zip64 : 0);
+        ByteBuffer buf = buffer(46 + entry.name.length + extra);
+        buf.putInt(0x02014b50).putShort((short) (UNIX << 8 | Math.max(version(entry), zip64 > 0 ? 45 : 20)))
+                .putShort((short) (zip64 > 0 ? 45 : version(entry))).putShort((short) flags())
+                .putShort((short) entry.method).putInt(entry.dosTime).putInt((int) entry.crc)
+                .putInt((int) (sizes64 ? LIMIT : entry.csize)).putInt((int) (sizes64 ? LIMIT : entry.size))
+                .putShort((short) entry.name.length).putShort((short) extra).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 0)
+                .putInt(entry.mode << 16 | ((entry.mode & 0200) == 0 ? 1 : 0) | (entry.directory ? 0x10 : 0))
+                .putInt((int) (offset64 ? LIMIT : entry.offset)).put(entry.name);
+        if (zip64 > 0) {
+            buf.putShort((short) 1).putShort((short) zip64);
+            if (sizes64) buf.putLong(entry.size).putLong(entry.csize);
+            if (offset64) buf.putLong(entry.offset);
+        }
+        return buf.put(entry.extra).flip();
+    }
+
+    /**
+     * Writes the remaining entries and the central directory
+     * @param comment the archive comment, or {@literal null}
+     */
+    void finish(String comment) throws IOException {
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        long start = position;
+        for (Entry entry : entries) {
+            position += write(centralHeader(entry), position);
+        }
+        long size = position - start;
+        int count = entries.size();
+
+        if (count >= 0xFFFF || size >= LIMIT || start >= LIMIT) {
+            if (!zip64) {
+                throw new IOException(count >= 0xFFFF ? "archive contains more than 65535 entries."
+                        : "archive's size exceeds the limit of 4GByte.");
+            }
+            long end = position;
+            ByteBuffer buf = buffer(56 + 20);
+            buf.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45).putInt(0).putInt(0)
+                    .putLong(count).putLong(count).putLong(size).putLong(start);
+            buf.putInt(0x07064b50).putInt(0).putLong(end).putInt(1);
+            position += write(buf.flip(), position);
+        }
+        byte[] text = comment == null ? EMPTY : comment.getBytes(charset);
+        ByteBuffer buf = buffer(22 + text.length);
+        buf.putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+                .putShort((short) Math.min(count, 0xFFFF)).putShort((short) Math.min(count, 0xFFFF))
+                .putInt((int) Math.min(size, LIMIT)).putInt((int) Math.min(start, LIMIT))
+                .putShort((short) text.length).put(text);
+        position += write(buf.flip(), position);
+        channel.truncate(position);
+    }
+
+    @Override public void close() throws IOException {
+        for (Segment segment : pending) {
+            segment.chunk().cancel(false);
+        }
+        channel.close();
+    }
+
+    /**
+     * Converts a time to the MS-DOS format of zip headers, in the local time zone as Ant and the JDK do
+     */
+    static int dosTime(long time) {
+        LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        if (t.getYear() < 1980) return 0x00210000;
+        return (t.getYear() - 1980) << 25 | t.getMonthValue() << 21 | t.getDayOfMonth() << 16
+                | t.getHour() << 11 | t.getMinute() << 5 | t.getSecond() >> 1;
+    }
+}
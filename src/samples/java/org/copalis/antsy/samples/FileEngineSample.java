@@ -0,0 +1,66 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy.samples;
+
+import java.io.File;
+import java.util.Map;
+
+import org.apache.tools.ant.taskdefs.Copy;
+import org.copalis.antsy.AntEngine;
+import org.copalis.antsy.AntProject;
+import org.copalis.antsy.AntTarget;
+import org.copalis.antsy.Tasks;
+
+/**
+ * Copies the samples with the file engines, reporting whether the copy engine ran the task
+ * @author gilesjb
+ *
+ */
+public class FileEngineSample implements Tasks {
+
+    static File
+        src = new File("src/samples/java"),
+        dest = new File("target/samples/copy");
+
+    public static void main(String... args) {
+        AntProject ant = new AntProject().fileEngines();
+        Map<Class<?>, AntEngine<?>> engines = ant.project().getReference(AntEngine.REFERENCE);
+        @SuppressWarnings("unchecked")
+        AntEngine<Copy> nio = (AntEngine<Copy>) engines.get(Copy.class);
+        ant.engine(Copy.class, new AntEngine<Copy>() {
+            public boolean supports(Copy task) {
+                boolean supported = nio.supports(task);
+                task.log(supported ? "Copying with the NIO engine" : "Copying with Ant");
+                return supported;
+            }
+            public void execute(Copy task) {
+                nio.execute(task);
+            }
+        });
+
+        ant.startBuild();
+        AntTarget target = ant.startTarget("copy");
+        ant.task(copy)
+            .todir(dest)
+            .withFileset()
+                .dir(src)
+                .includes("**/*.java")
+                .end()
+            .run();
+        target.finished();
+        ant.buildFinished();
+    }
+}
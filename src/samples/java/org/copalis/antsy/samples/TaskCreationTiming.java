@@ -0,0 +1,60 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.copalis.antsy.samples;
+
+import org.apache.tools.ant.Project;
+import org.copalis.antsy.AntProject;
+import org.copalis.antsy.AntTask;
+import org.copalis.antsy.Tasks;
+
+/**
+ * Compares the cost of creating task facades through the cached factories in {@link AntTask#create}
+ * with the reflective lookup that was used previously
+ *
+ * @author gilesjb
+ */
+public class TaskCreationTiming implements Tasks {
+
+    static final int ITERATIONS = 200_000;
+
+    public static void main(String... args) throws Exception {
+        Project project = new AntProject().project();
+
+        for (int round = 0; round < 5; round++) {
+            long reflective = time(() -> reflective(echo, project));
+            long cached = time(() -> AntTask.create(echo, project));
+            System.out.printf("reflective: %5d ns/op   cached: %5d ns/op%n",
+                    reflective / ITERATIONS, cached / ITERATIONS);
+        }
+    }
+
+    static long time(Runnable op) {
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            op.run();
+        }
+        return System.nanoTime() - start;
+    }
+
+    static <X extends AntTask<?>> X reflective(Class<X> type, Project project) {
+        try {
+            return type.getConstructor(String.class, Project.class)
+                    .newInstance(type.getSimpleName().toLowerCase(), project);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}